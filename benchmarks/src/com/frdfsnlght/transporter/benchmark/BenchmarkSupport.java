@@ -0,0 +1,318 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.benchmark;
+
+import com.frdfsnlght.transporter.Config;
+import com.frdfsnlght.transporter.Design;
+import com.frdfsnlght.transporter.Designs;
+import com.frdfsnlght.transporter.GateMap;
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Stand-ins for the bits of the plugin and server that the benchmarks
+ * need but which normally only exist inside a running Bukkit server.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class BenchmarkSupport {
+
+    private static boolean configInitialized = false;
+
+    // Installs an empty configuration so option getters return their defaults.
+    static synchronized void initConfig() {
+        if (configInitialized) return;
+        setStatic(Config.class, "config", new TypeMap());
+        configInitialized = true;
+    }
+
+    // Loads a design shipped in the plugin jar and registers it with Designs.
+    @SuppressWarnings("unchecked")
+    static Design loadDesign(String name) throws Exception {
+        initConfig();
+        InputStream is = Design.class.getResourceAsStream("/resources/designs/" + name + ".yml");
+        if (is == null)
+            throw new IOException("design '" + name + "' not found");
+        File file = File.createTempFile("design-" + name, ".yml");
+        file.deleteOnExit();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = is.read(buffer)) != -1)
+                os.write(buffer, 0, len);
+        } finally {
+            os.close();
+            is.close();
+        }
+        Design design = new Design(file);
+        Map<String,Design> designs = (Map<String,Design>)getStatic(Designs.class, "designs");
+        designs.put(design.getName(), design);
+        ((Map<?,?>)getStatic(Designs.class, "worldScreens")).clear();
+        return design;
+    }
+
+    static World newWorld(String name) {
+        return (World)Proxy.newProxyInstance(World.class.getClassLoader(),
+                new Class<?>[] { World.class }, new WorldHandler(name));
+    }
+
+    static void setBlock(World world, int x, int y, int z, int typeId, byte data) {
+        worldHandler(world).blocks.put(GateMap.pack(x, y, z), (typeId << 8) | (data & 0xff));
+    }
+
+    // Returns a synthetic reservation message with a full inventory, armor and potion effects.
+    static TypeMap newReservationMessage(Random random) {
+        TypeMap res = new TypeMap();
+        res.put("id", random.nextLong());
+        res.put("entityType", "PLAYER");
+        res.put("entityId", random.nextInt(100000));
+        res.put("playerName", "Player" + random.nextInt(1000));
+        res.put("playerPin", "1234");
+        res.put("clientAddress", "192.168.1." + random.nextInt(255));
+        res.put("velX", random.nextDouble());
+        res.put("velY", random.nextDouble());
+        res.put("velZ", random.nextDouble());
+        res.put("fromX", random.nextDouble() * 10000);
+        res.put("fromY", random.nextDouble() * 256);
+        res.put("fromZ", random.nextDouble() * 10000);
+        res.put("fromPitch", random.nextFloat() * 90);
+        res.put("fromYaw", random.nextFloat() * 360);
+        res.put("fromWorld", "world");
+        res.put("inventory", newItemStacks(random, 36));
+        res.put("health", 20.0);
+        res.put("remainingAir", 300);
+        res.put("fireTicks", 0);
+        res.put("foodLevel", 20);
+        res.put("exhaustion", random.nextFloat());
+        res.put("saturation", random.nextFloat() * 5);
+        res.put("gameMode", "SURVIVAL");
+        res.put("heldItemSlot", random.nextInt(9));
+        res.put("armor", newItemStacks(random, 4));
+        res.put("level", random.nextInt(50));
+        res.put("xp", random.nextFloat());
+        List<TypeMap> effects = new ArrayList<TypeMap>();
+        for (int i = 0; i < 3; i++) {
+            TypeMap effect = new TypeMap();
+            effect.put("type", "SPEED");
+            effect.put("duration", random.nextInt(6000));
+            effect.put("amplifier", random.nextInt(3));
+            effects.add(effect);
+        }
+        res.put("potionEffects", effects);
+        res.put("fromGate", "world.Gate" + random.nextInt(1000));
+        res.put("fromGateDirection", "NORTH");
+        res.put("toGate", "world.Gate" + random.nextInt(1000));
+        res.put("toWorldName", "world");
+
+        TypeMap message = new TypeMap();
+        message.put("command", "reservation");
+        message.put("requestId", random.nextInt(10000));
+        message.put("reservation", res);
+        return message;
+    }
+
+    private static List<TypeMap> newItemStacks(Random random, int count) {
+        List<TypeMap> stacks = new ArrayList<TypeMap>(count);
+        for (int slot = 0; slot < count; slot++) {
+            if (random.nextInt(4) == 0) {
+                stacks.add(null);
+                continue;
+            }
+            TypeMap s = new TypeMap();
+            s.put("type", random.nextInt(400) + 1);
+            s.put("amount", random.nextInt(64) + 1);
+            s.put("durability", random.nextInt(100));
+            s.put("data", 0);
+            if (random.nextInt(5) == 0) {
+                TypeMap ench = new TypeMap();
+                ench.put("DURABILITY", random.nextInt(3) + 1);
+                ench.put("DIG_SPEED", random.nextInt(5) + 1);
+                s.put("enchantments", ench);
+            }
+            stacks.add(s);
+        }
+        return stacks;
+    }
+
+    private static WorldHandler worldHandler(World world) {
+        return (WorldHandler)Proxy.getInvocationHandler(world);
+    }
+
+    private static Object getStatic(Class<?> cls, String name) {
+        try {
+            Field f = cls.getDeclaredField(name);
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("unable to read " + cls.getName() + "." + name, e);
+        }
+    }
+
+    private static void setStatic(Class<?> cls, String name, Object value) {
+        try {
+            Field f = cls.getDeclaredField(name);
+            f.setAccessible(true);
+            f.set(null, value);
+        } catch (Exception e) {
+            throw new IllegalStateException("unable to set " + cls.getName() + "." + name, e);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (! type.isPrimitive()) return null;
+        if (type == Boolean.TYPE) return false;
+        if (type == Byte.TYPE) return (byte)0;
+        if (type == Short.TYPE) return (short)0;
+        if (type == Character.TYPE) return (char)0;
+        if (type == Integer.TYPE) return 0;
+        if (type == Long.TYPE) return 0L;
+        if (type == Float.TYPE) return 0f;
+        if (type == Double.TYPE) return 0d;
+        return null;
+    }
+
+    private static final class WorldHandler implements InvocationHandler {
+
+        private final String name;
+        private final Map<Long,Integer> blocks = new HashMap<Long,Integer>();
+
+        WorldHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            if (m.equals("getName")) return name;
+            if (m.equals("getBlockAt")) {
+                if (args.length == 1) {
+                    Location loc = (Location)args[0];
+                    return newBlock((World)proxy, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+                }
+                return newBlock((World)proxy, (Integer)args[0], (Integer)args[1], (Integer)args[2]);
+            }
+            if (m.equals("getChunkAt") && (args.length == 2))
+                return newChunk((World)proxy, (Integer)args[0], (Integer)args[1]);
+            if (m.equals("getMaxHeight")) return 256;
+            if (m.equals("hashCode")) return System.identityHashCode(proxy);
+            if (m.equals("equals")) return proxy == args[0];
+            if (m.equals("toString")) return "World[" + name + "]";
+            return defaultValue(method.getReturnType());
+        }
+
+        private Block newBlock(World world, int x, int y, int z) {
+            return (Block)Proxy.newProxyInstance(Block.class.getClassLoader(),
+                    new Class<?>[] { Block.class }, new BlockHandler(world, this, x, y, z));
+        }
+
+        private Chunk newChunk(World world, int x, int z) {
+            return (Chunk)Proxy.newProxyInstance(Chunk.class.getClassLoader(),
+                    new Class<?>[] { Chunk.class, ChunkSnapshot.class }, new ChunkHandler(world, this, x, z));
+        }
+
+    }
+
+    // Serves as both the chunk and its snapshot, reading straight from the world's blocks.
+    private static final class ChunkHandler implements InvocationHandler {
+
+        private final World world;
+        private final WorldHandler worldHandler;
+        private final int x, z;
+
+        ChunkHandler(World world, WorldHandler worldHandler, int x, int z) {
+            this.world = world;
+            this.worldHandler = worldHandler;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            if (m.equals("getChunkSnapshot")) return proxy;
+            if (m.equals("getWorld")) return world;
+            if (m.equals("getX")) return x;
+            if (m.equals("getZ")) return z;
+            if (m.equals("getBlockTypeId") || m.equals("getBlockData")) {
+                Integer packed = worldHandler.blocks.get(GateMap.pack((x << 4) + (Integer)args[0], (Integer)args[1], (z << 4) + (Integer)args[2]));
+                if (packed == null) return 0;
+                return m.equals("getBlockTypeId") ? (packed >> 8) : (packed & 0xff);
+            }
+            if (m.equals("hashCode")) return (x * 31) + z;
+            if (m.equals("equals")) return proxy == args[0];
+            if (m.equals("toString")) return "Chunk[" + x + "," + z + "]";
+            return defaultValue(method.getReturnType());
+        }
+
+    }
+
+    private static final class BlockHandler implements InvocationHandler {
+
+        private final World world;
+        private final WorldHandler worldHandler;
+        private final int x, y, z;
+
+        BlockHandler(World world, WorldHandler worldHandler, int x, int y, int z) {
+            this.world = world;
+            this.worldHandler = worldHandler;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            Integer packed = worldHandler.blocks.get(GateMap.pack(x, y, z));
+            int typeId = (packed == null) ? 0 : (packed >> 8);
+            byte data = (packed == null) ? 0 : (byte)(packed & 0xff);
+            if (m.equals("getTypeId")) return typeId;
+            if (m.equals("getType")) return Material.getMaterial(typeId);
+            if (m.equals("getData")) return data;
+            if (m.equals("getWorld")) return world;
+            if (m.equals("getX")) return x;
+            if (m.equals("getY")) return y;
+            if (m.equals("getZ")) return z;
+            if (m.equals("getLocation") && (args == null)) return new Location(world, x, y, z);
+            if (m.equals("hashCode")) return (((x * 31) + y) * 31) + z;
+            if (m.equals("equals")) return proxy == args[0];
+            if (m.equals("toString")) return "Block[" + x + "," + y + "," + z + "]";
+            return defaultValue(method.getReturnType());
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.benchmark;
+
+import com.frdfsnlght.transporter.net.Cipher;
+import com.frdfsnlght.transporter.net.SessionCipher;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encrypting and decrypting one message frame the way
+ * Connection does it, with both the padded legacy cipher and the
+ * negotiated AES-GCM session cipher.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+
+    private static final int PAD_SIZE = 256;
+
+    // 64 bytes is about a keepAlive, 4K a reservation, 64K a large refresh
+    @Param({ "64", "4096", "65536" })
+    public int messageSize;
+
+    private byte[] key;
+    private byte[] plainText;
+    private byte[] cipherText;
+    private Cipher cipher;
+    private SessionCipher sendSession;
+    private SessionCipher receiveSession;
+    private byte[] sessionText;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random random = new Random(1);
+        key = "this is a benchmark key".getBytes("UTF-8");
+        plainText = new byte[messageSize];
+        random.nextBytes(plainText);
+        Cipher cipher = new Cipher(PAD_SIZE);
+        cipher.initEncrypt(key);
+        cipherText = cipher.doFinal(plainText);
+        this.cipher = cipher;
+
+        byte[] senderNonce = SessionCipher.newNonce();
+        byte[] receiverNonce = SessionCipher.newNonce();
+        sendSession = SessionCipher.create("this is a benchmark key", senderNonce, receiverNonce);
+        receiveSession = SessionCipher.create("this is a benchmark key", senderNonce, receiverNonce);
+        sessionText = sendSession.encrypt(plainText);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        cipher.initEncrypt(key);
+        return cipher.doFinal(plainText);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        cipher.initDecrypt(key);
+        return cipher.doFinal(cipherText);
+    }
+
+    @Benchmark
+    public byte[] sessionEncrypt() throws Exception {
+        return sendSession.encrypt(plainText);
+    }
+
+    @Benchmark
+    public byte[] sessionDecrypt() throws Exception {
+        return receiveSession.decrypt(ByteBuffer.wrap(sessionText));
+    }
+
+}
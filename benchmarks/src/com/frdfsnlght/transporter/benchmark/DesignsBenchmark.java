@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.benchmark;
+
+import com.frdfsnlght.transporter.BuildableBlock;
+import com.frdfsnlght.transporter.Design;
+import com.frdfsnlght.transporter.DesignMatch;
+import com.frdfsnlght.transporter.Designs;
+import com.frdfsnlght.transporter.GateBlock;
+import com.frdfsnlght.transporter.TransformedDesign;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures matching a placed sign against every shipped design, which
+ * runs on every sign change.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DesignsBenchmark {
+
+    private static final String[] DESIGNS = {
+        "nether", "pad", "stargate", "web", "minecart", "boat", "small", "booth", "redstone", "plaza"
+    };
+
+    // The design that is actually built in the world.
+    @Param({ "stargate", "plaza" })
+    public String builtDesign;
+
+    private Location screen;
+    private Location empty;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Design built = null;
+        for (String name : DESIGNS) {
+            Design design = BenchmarkSupport.loadDesign(name);
+            if (name.equals(builtDesign)) built = design;
+        }
+        if (built == null)
+            throw new IllegalStateException("unknown design '" + builtDesign + "'");
+
+        World world = BenchmarkSupport.newWorld("world");
+        TransformedDesign tDesign = new TransformedDesign(built, new Location(world, 0, 64, 0), BlockFace.NORTH);
+        for (GateBlock gb : tDesign.getBlocks()) {
+            BuildableBlock bb = gb.getDetail().getBuildBlock();
+            if (bb == null) continue;
+            Location l = gb.getLocation();
+            BenchmarkSupport.setBlock(world, l.getBlockX(), l.getBlockY(), l.getBlockZ(), bb.getType(), bb.getData());
+            if (gb.getDetail().isScreen() && (screen == null))
+                screen = l;
+        }
+        if (screen == null)
+            throw new IllegalStateException("design '" + builtDesign + "' has no screen");
+        empty = new Location(world, 1000, 64, 1000);
+    }
+
+    @Benchmark
+    public DesignMatch matchScreenHit() {
+        return Designs.matchScreen(screen);
+    }
+
+    @Benchmark
+    public DesignMatch matchScreenMiss() {
+        return Designs.matchScreen(empty);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.benchmark;
+
+import com.frdfsnlght.transporter.GateMap;
+import com.frdfsnlght.transporter.GateMap.Volume;
+import com.frdfsnlght.transporter.LocalGateImpl;
+import com.frdfsnlght.transporter.test.TestGate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures portal lookups, which run on every move, vehicle move, fluid
+ * flow and redstone event, and the cost of changing the map.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GateMapBenchmark {
+
+    private static final int NUM_PROBES = 4096;
+
+    @Param({ "100", "1000", "5000" })
+    public int numGates;
+
+    private TestGate[] gates;
+    private Volume[] volumes;
+    private GateMap map;
+    private Location[] hits;
+    private Location[] misses;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initConfig();
+        World world = BenchmarkSupport.newWorld("world");
+        gates = new TestGate[numGates];
+        volumes = new Volume[numGates];
+        map = new GateMap();
+        List<Location> blocks = new ArrayList<Location>();
+        for (int i = 0; i < numGates; i++) {
+            gates[i] = new TestGate(world, "Gate" + i, "benchmark", BlockFace.NORTH, new Random(i));
+            volumes[i] = gates[i].getVolume();
+            map.put(volumes[i]);
+            blocks.addAll(gates[i].getBlocks());
+        }
+
+        Random r = new Random(1);
+        hits = new Location[NUM_PROBES];
+        misses = new Location[NUM_PROBES];
+        for (int i = 0; i < NUM_PROBES; i++) {
+            hits[i] = blocks.get(r.nextInt(blocks.size()));
+            misses[i] = new Location(world,
+                    r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE,
+                    r.nextInt(256),
+                    r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE);
+        }
+    }
+
+    @Benchmark
+    public LocalGateImpl getGateHit() {
+        return map.getGate(hits[next++ & (NUM_PROBES - 1)]);
+    }
+
+    @Benchmark
+    public LocalGateImpl getGateMiss() {
+        return map.getGate(misses[next++ & (NUM_PROBES - 1)]);
+    }
+
+    // Removing and re-adding one gate, as happens when a gate opens, closes or is resized.
+    @Benchmark
+    public GateMap updateGate() {
+        int i = (next++ & Integer.MAX_VALUE) % numGates;
+        map.removeGate(gates[i]);
+        map.put(volumes[i]);
+        return map;
+    }
+
+    // Building the whole map, as happens when every gate in a world is loaded.
+    @Benchmark
+    public GateMap rebuild() {
+        GateMap m = new GateMap();
+        for (Volume volume : volumes)
+            m.put(volume);
+        return m;
+    }
+
+}
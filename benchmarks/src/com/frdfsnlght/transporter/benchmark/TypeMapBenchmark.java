@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.benchmark;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import com.frdfsnlght.transporter.net.MessageCodec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the wire encodings used for every server-to-server message:
+ * the original string encoding and the binary MessageCodec.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeMapBenchmark {
+
+    private TypeMap reservation;
+    private String encodedReservation;
+    private TypeMap batch;
+    private String encodedBatch;
+    private byte[] binaryReservation;
+    private byte[] binaryBatch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1);
+        reservation = BenchmarkSupport.newReservationMessage(random);
+        encodedReservation = reservation.encode();
+
+        // a burst of reservations, roughly the size of a large refresh
+        List<TypeMap> list = new ArrayList<TypeMap>();
+        for (int i = 0; i < 50; i++)
+            list.add(BenchmarkSupport.newReservationMessage(random));
+        batch = new TypeMap();
+        batch.put("command", "batch");
+        batch.put("messages", list);
+        encodedBatch = batch.encode();
+        binaryReservation = MessageCodec.encode(reservation);
+        binaryBatch = MessageCodec.encode(batch);
+    }
+
+    @Benchmark
+    public String encodeReservation() {
+        return reservation.encode();
+    }
+
+    @Benchmark
+    public TypeMap decodeReservation() {
+        return TypeMap.decode(encodedReservation);
+    }
+
+    @Benchmark
+    public String encodeBatch() {
+        return batch.encode();
+    }
+
+    @Benchmark
+    public TypeMap decodeBatch() {
+        return TypeMap.decode(encodedBatch);
+    }
+
+    @Benchmark
+    public byte[] encodeReservationBinary() {
+        return MessageCodec.encode(reservation);
+    }
+
+    @Benchmark
+    public TypeMap decodeReservationBinary() {
+        return MessageCodec.decode(binaryReservation);
+    }
+
+    @Benchmark
+    public byte[] encodeBatchBinary() {
+        return MessageCodec.encode(batch);
+    }
+
+    @Benchmark
+    public TypeMap decodeBatchBinary() {
+        return MessageCodec.decode(binaryBatch);
+    }
+
+}
@@ -183,38 +183,42 @@ public final class BuildableBlock {
 
     public boolean matches(Block block) {
         Utils.debug("match %s to %s", this, Utils.block(block));
+        return matches(block.getTypeId(), block.getData());
+    }
 
-        if (block.getTypeId() != type) {
-            // handle liquids special
-            switch (block.getType()) {
-                case WATER:
-                case STATIONARY_WATER:
-                    if ((type == Material.WATER.getId()) ||
-                        (type == Material.STATIONARY_WATER.getId())) return true;
-                    break;
-                case LAVA:
-                case STATIONARY_LAVA:
-                    if ((type == Material.LAVA.getId()) ||
-                        (type == Material.STATIONARY_LAVA.getId())) return true;
-                    break;
-            }
-            return false;
-        }
+    public boolean matches(int otherType, byte otherData) {
+        if (! matchesType(otherType)) return false;
+        if (otherType != type) return true;
 
         // can't simply compare data values because signs can have multiple values indicating
         // the same facing direction!
         MaterialData myMd = Material.getMaterial(type).getNewData(data);
-        MaterialData otherMd = block.getType().getNewData(block.getData());
+        MaterialData otherMd = Material.getMaterial(otherType).getNewData(otherData);
         if ((myMd instanceof Directional) &&
             (otherMd instanceof Directional)) {
             return ((Directional)myMd).getFacing() == ((Directional)otherMd).getFacing();
             // this is broken if there are other aspects to compare
         }
-        if (block.getData() != data) return false;
+        if (otherData != data) return false;
         // we don't care about matching lines on a sign
         return true;
     }
 
+    // Checks only the type, which is enough to rule out most blocks.
+    public boolean matchesType(int otherType) {
+        if (otherType == type) return true;
+        // handle liquids special
+        if ((otherType == Material.WATER.getId()) ||
+            (otherType == Material.STATIONARY_WATER.getId()))
+            return (type == Material.WATER.getId()) ||
+                   (type == Material.STATIONARY_WATER.getId());
+        if ((otherType == Material.LAVA.getId()) ||
+            (otherType == Material.STATIONARY_LAVA.getId()))
+            return (type == Material.LAVA.getId()) ||
+                   (type == Material.STATIONARY_LAVA.getId());
+        return false;
+    }
+
     // only applied to screens (i.e., signs)
     public BlockFace matchTypeAndDirection(Block block) {
         if (block.getTypeId() != type) return null;
@@ -18,7 +18,6 @@ package com.frdfsnlght.transporter;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.event.RemotePlayerChatEvent;
 import com.frdfsnlght.transporter.api.event.RemotePlayerPMEvent;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +28,7 @@ import java.util.regex.Pattern;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.RegisteredServiceProvider;
@@ -102,8 +102,8 @@ public final class Chat {
         Location loc = player.getLocation();
         RemoteGateImpl destGate;
         Server destServer;
-        for (LocalGateImpl gate : Gates.getLocalGates()) {
-            if (gate.isOpen() && gate.canSendChat(message, format) && gate.isInChatSendProximity(loc)) {
+        for (LocalGateImpl gate : ChatIndex.getSendGates(loc)) {
+            if (gate.canSendChat(message, format)) {
                 try {
                     GateImpl dg = gate.getDestinationGate();
                     if (! (dg instanceof RemoteGateImpl)) continue;
@@ -129,22 +129,28 @@ public final class Chat {
     }
 
     public static void receive(Server fromServer, RemotePlayerImpl player, String message, List<String> toGates) {
-        Player[] players = (Player[]) Global.plugin.getServer().getOnlinePlayers().toArray();
-
         Set<Player> playersToReceive = new HashSet<Player>();
         if ((toGates == null) && fromServer.canReceiveChat(message))
-            Collections.addAll(playersToReceive, players);
+            playersToReceive.addAll(Global.plugin.getServer().getOnlinePlayers());
         else if ((toGates != null) && (! toGates.isEmpty())) {
+            // only players in worlds with a receiving gate need to be checked
+            Map<World,Set<LocalGateImpl>> worldGates = new HashMap<World,Set<LocalGateImpl>>();
             for (String gateName : toGates) {
                 GateImpl g = Gates.get(gateName);
                 if ((g == null) || (! (g instanceof LocalGateImpl))) continue;
                 LocalGateImpl gate = (LocalGateImpl)g;
                 if (! gate.canReceiveChat(message)) continue;
-                for (Player p : players) {
-                    if (gate.isInChatReceiveProximity(p.getLocation()))
-                        playersToReceive.add(p);
+                Set<LocalGateImpl> gates = worldGates.get(gate.getWorld());
+                if (gates == null) {
+                    gates = new HashSet<LocalGateImpl>();
+                    worldGates.put(gate.getWorld(), gates);
                 }
+                gates.add(gate);
             }
+            for (Map.Entry<World,Set<LocalGateImpl>> entry : worldGates.entrySet())
+                for (Player p : entry.getKey().getPlayers())
+                    if (ChatIndex.isInReceiveRange(p.getLocation(), entry.getValue()))
+                        playersToReceive.add(p);
         } else {
             Utils.debug("chat message ignored");
             return;
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+/**
+ * Finds the local gates whose chat range covers a location.
+ * <p>
+ * Gates that send chat are indexed while they're open, gates that receive
+ * chat are indexed all the time. Each gate is filed under every grid cell
+ * its range overlaps, so a lookup only has to check the gates in one cell.
+ * Gates with an unlimited or very large range are kept in a separate list
+ * for their world instead. Gates tell Gates.updateChat when they open,
+ * close, move or change their chat options. Must be used on the main
+ * thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class ChatIndex {
+
+    // cells are 32 blocks on a side
+    private static final int CELL_SHIFT = 5;
+
+    // gates whose range spans more cells than this on either axis go in the world list
+    private static final int MAX_CELL_SPAN = 32;
+
+    private static final Map<String,WorldIndex> sendWorlds = new HashMap<String,WorldIndex>();
+    private static final Map<String,WorldIndex> receiveWorlds = new HashMap<String,WorldIndex>();
+
+    // where each gate is currently filed
+    private static final Map<LocalGateImpl,Entry> sendEntries = new HashMap<LocalGateImpl,Entry>();
+    private static final Map<LocalGateImpl,Entry> receiveEntries = new HashMap<LocalGateImpl,Entry>();
+
+    // Refiles the gate according to its current state.
+    static void update(LocalGateImpl gate) {
+        remove(gate);
+        if (gate.isOpen() && gate.getSendChat())
+            add(sendWorlds, sendEntries, gate, gate.getSendChatDistance());
+        if (gate.getReceiveChat())
+            add(receiveWorlds, receiveEntries, gate, gate.getReceiveChatDistance());
+    }
+
+    static void remove(LocalGateImpl gate) {
+        remove(sendWorlds, sendEntries, gate);
+        remove(receiveWorlds, receiveEntries, gate);
+    }
+
+    static void clear() {
+        sendWorlds.clear();
+        receiveWorlds.clear();
+        sendEntries.clear();
+        receiveEntries.clear();
+    }
+
+    // Returns the open gates that will relay chat sent from the location.
+    static List<LocalGateImpl> getSendGates(Location location) {
+        List<LocalGateImpl> found = new ArrayList<LocalGateImpl>();
+        WorldIndex windex = sendWorlds.get(location.getWorld().getName());
+        if (windex == null) return found;
+        for (LocalGateImpl gate : windex.candidates(location))
+            if (gate.isInChatSendProximity(location))
+                found.add(gate);
+        return found;
+    }
+
+    // Returns true if any of the gates will deliver received chat to the location.
+    static boolean isInReceiveRange(Location location, Collection<LocalGateImpl> gates) {
+        WorldIndex windex = receiveWorlds.get(location.getWorld().getName());
+        if (windex == null) return false;
+        for (LocalGateImpl gate : windex.candidates(location))
+            if (gates.contains(gate) && gate.isInChatReceiveProximity(location))
+                return true;
+        return false;
+    }
+
+    private static void add(Map<String,WorldIndex> worlds, Map<LocalGateImpl,Entry> entries, LocalGateImpl gate, int distance) {
+        String worldName = gate.getWorld().getName();
+        WorldIndex windex = worlds.get(worldName);
+        if (windex == null) {
+            windex = new WorldIndex();
+            worlds.put(worldName, windex);
+        }
+        Entry entry = new Entry(worldName);
+        Vector center = gate.getCenter();
+        if ((distance > 0) && (center != null)) {
+            entry.minX = (int)Math.floor(center.getX() - distance) >> CELL_SHIFT;
+            entry.maxX = (int)Math.floor(center.getX() + distance) >> CELL_SHIFT;
+            entry.minZ = (int)Math.floor(center.getZ() - distance) >> CELL_SHIFT;
+            entry.maxZ = (int)Math.floor(center.getZ() + distance) >> CELL_SHIFT;
+            entry.cells = ((entry.maxX - entry.minX) < MAX_CELL_SPAN) && ((entry.maxZ - entry.minZ) < MAX_CELL_SPAN);
+        }
+        if (entry.cells) {
+            for (int cx = entry.minX; cx <= entry.maxX; cx++)
+                for (int cz = entry.minZ; cz <= entry.maxZ; cz++)
+                    windex.addToCell(GateMap.chunkKey(cx, cz), gate);
+        } else
+            windex.anywhere.add(gate);
+        entries.put(gate, entry);
+    }
+
+    private static void remove(Map<String,WorldIndex> worlds, Map<LocalGateImpl,Entry> entries, LocalGateImpl gate) {
+        Entry entry = entries.remove(gate);
+        if (entry == null) return;
+        WorldIndex windex = worlds.get(entry.worldName);
+        if (windex == null) return;
+        if (entry.cells) {
+            for (int cx = entry.minX; cx <= entry.maxX; cx++)
+                for (int cz = entry.minZ; cz <= entry.maxZ; cz++)
+                    windex.removeFromCell(GateMap.chunkKey(cx, cz), gate);
+        } else
+            windex.anywhere.remove(gate);
+        if (windex.isEmpty())
+            worlds.remove(entry.worldName);
+    }
+
+    private static final class WorldIndex {
+
+        private final LongMap<LocalGateImpl[]> cells = new LongMap<LocalGateImpl[]>();
+        private final List<LocalGateImpl> anywhere = new ArrayList<LocalGateImpl>();
+
+        // Returns the gates that might cover the location.
+        List<LocalGateImpl> candidates(Location location) {
+            LocalGateImpl[] gates = cells.get(GateMap.chunkKey(location.getBlockX() >> CELL_SHIFT, location.getBlockZ() >> CELL_SHIFT));
+            if (gates == null) return anywhere;
+            if (anywhere.isEmpty()) return Arrays.asList(gates);
+            List<LocalGateImpl> all = new ArrayList<LocalGateImpl>(anywhere);
+            Collections.addAll(all, gates);
+            return all;
+        }
+
+        boolean isEmpty() {
+            return cells.isEmpty() && anywhere.isEmpty();
+        }
+
+        // Cells are small copy-on-write arrays, like the cells in GateMap.
+        void addToCell(long key, LocalGateImpl gate) {
+            LocalGateImpl[] gates = cells.get(key);
+            if (gates == null) {
+                cells.put(key, new LocalGateImpl[] { gate });
+                return;
+            }
+            LocalGateImpl[] newGates = Arrays.copyOf(gates, gates.length + 1);
+            newGates[gates.length] = gate;
+            cells.put(key, newGates);
+        }
+
+        void removeFromCell(long key, LocalGateImpl gate) {
+            LocalGateImpl[] gates = cells.get(key);
+            if (gates == null) return;
+            for (int i = 0; i < gates.length; i++) {
+                if (gates[i] != gate) continue;
+                if (gates.length == 1) {
+                    cells.remove(key);
+                    return;
+                }
+                LocalGateImpl[] newGates = new LocalGateImpl[gates.length - 1];
+                System.arraycopy(gates, 0, newGates, 0, i);
+                System.arraycopy(gates, i + 1, newGates, i, gates.length - i - 1);
+                cells.put(key, newGates);
+                return;
+            }
+        }
+
+    }
+
+    private static final class Entry {
+        final String worldName;
+        boolean cells = false;
+        int minX, maxX, minZ, maxZ;
+
+        Entry(String worldName) {
+            this.worldName = worldName;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * Loads the chunks around an expected arrival ahead of time.
+ * <p>
+ * Chunks are queued when a reservation is approved and loaded a few per
+ * tick, then kept loaded until the reservation is done with them, so the
+ * arrival itself doesn't have to wait on the disk. Must be used on the
+ * main thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class ChunkPreloader {
+
+    // chunks in each direction around the destination chunk
+    private static final int RADIUS = 1;
+    private static final int CHUNKS_PER_TICK = 2;
+
+    private static final Map<Object,List<ChunkKey>> owners = new HashMap<Object,List<ChunkKey>>();
+    private static final Map<ChunkKey,Integer> pins = new HashMap<ChunkKey,Integer>();
+    private static final LinkedList<ChunkKey> queue = new LinkedList<ChunkKey>();
+    private static boolean scheduled = false;
+
+    // Pins the chunks around the location for the owner and queues the ones that aren't loaded.
+    public static void pin(Object owner, Location location) {
+        World world = location.getWorld();
+        if (world == null) return;
+        release(owner);
+        int cx = location.getBlockX() >> 4;
+        int cz = location.getBlockZ() >> 4;
+        List<ChunkKey> keys = new ArrayList<ChunkKey>();
+        for (int x = cx - RADIUS; x <= cx + RADIUS; x++)
+            for (int z = cz - RADIUS; z <= cz + RADIUS; z++) {
+                ChunkKey key = new ChunkKey(world, x, z);
+                keys.add(key);
+                Integer count = pins.get(key);
+                pins.put(key, (count == null) ? 1 : count + 1);
+                if ((count == null) && (! world.isChunkLoaded(x, z)))
+                    queue.add(key);
+            }
+        owners.put(owner, keys);
+        Utils.debug("pinned %s chunks around %s", keys.size(), Utils.blockCoords(location));
+        schedule();
+    }
+
+    public static void release(Object owner) {
+        List<ChunkKey> keys = owners.remove(owner);
+        if (keys == null) return;
+        for (ChunkKey key : keys) {
+            Integer count = pins.get(key);
+            if (count == null) continue;
+            if (count <= 1)
+                pins.remove(key);
+            else
+                pins.put(key, count - 1);
+        }
+    }
+
+    public static boolean isPinned(Chunk chunk) {
+        if (pins.isEmpty()) return false;
+        return pins.containsKey(new ChunkKey(chunk.getWorld(), chunk.getX(), chunk.getZ()));
+    }
+
+    // Forgets everything pinned in the world.
+    public static void removeWorld(World world) {
+        for (Iterator<List<ChunkKey>> i = owners.values().iterator(); i.hasNext(); ) {
+            List<ChunkKey> keys = i.next();
+            if ((! keys.isEmpty()) && keys.get(0).world.getName().equals(world.getName()))
+                i.remove();
+        }
+        for (Iterator<ChunkKey> i = pins.keySet().iterator(); i.hasNext(); )
+            if (i.next().world.getName().equals(world.getName())) i.remove();
+        for (Iterator<ChunkKey> i = queue.iterator(); i.hasNext(); )
+            if (i.next().world.getName().equals(world.getName())) i.remove();
+    }
+
+    public static void clear() {
+        owners.clear();
+        pins.clear();
+        queue.clear();
+    }
+
+    private static void schedule() {
+        if (scheduled || queue.isEmpty()) return;
+        if (Utils.fire(new Runnable() {
+            public void run() {
+                scheduled = false;
+                loadSome();
+            }
+        }) != -1)
+            scheduled = true;
+    }
+
+    private static void loadSome() {
+        int loaded = 0;
+        while ((loaded < CHUNKS_PER_TICK) && (! queue.isEmpty())) {
+            ChunkKey key = queue.removeFirst();
+            // released before we got to it
+            if (! pins.containsKey(key)) continue;
+            if (key.world.isChunkLoaded(key.x, key.z)) continue;
+            key.world.loadChunk(key.x, key.z);
+            loaded++;
+        }
+        schedule();
+    }
+
+    private static final class ChunkKey {
+
+        final World world;
+        final int x, z;
+
+        ChunkKey(World world, int x, int z) {
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((world.getName().hashCode() * 31) + x) * 31) + z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof ChunkKey)) return false;
+            ChunkKey other = (ChunkKey)obj;
+            return (x == other.x) && (z == other.z) && world.getName().equals(other.world.getName());
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+/**
+ * Reads block types and data from snapshots of a world's chunks.
+ * <p>
+ * Each chunk is snapshotted the first time one of its blocks is read, so
+ * checking many blocks close together costs one chunk copy instead of a
+ * world lookup per block. Must be used on the main thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class ChunkSnapshots {
+
+    private final World world;
+    private final int maxHeight;
+    private final Map<Long,ChunkSnapshot> snapshots = new HashMap<Long,ChunkSnapshot>();
+
+    // the last chunk read from, which is usually the next one too
+    private ChunkSnapshot last = null;
+    private int lastX, lastZ;
+
+    ChunkSnapshots(World world) {
+        this.world = world;
+        maxHeight = world.getMaxHeight();
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    ChunkSnapshot getSnapshot(int chunkX, int chunkZ) {
+        if ((last != null) && (lastX == chunkX) && (lastZ == chunkZ)) return last;
+        Long key = ((long)chunkX << 32) | (chunkZ & 0xffffffffL);
+        ChunkSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            snapshot = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot();
+            snapshots.put(key, snapshot);
+        }
+        last = snapshot;
+        lastX = chunkX;
+        lastZ = chunkZ;
+        return snapshot;
+    }
+
+    // Blocks above or below the world read as air.
+    int getTypeId(int x, int y, int z) {
+        if ((y < 0) || (y >= maxHeight)) return 0;
+        return getSnapshot(x >> 4, z >> 4).getBlockTypeId(x & 15, y, z & 15);
+    }
+
+    byte getData(int x, int y, int z) {
+        if ((y < 0) || (y >= maxHeight)) return 0;
+        return (byte)getSnapshot(x >> 4, z >> 4).getBlockData(x & 15, y, z & 15);
+    }
+
+}
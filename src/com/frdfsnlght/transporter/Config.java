@@ -78,6 +78,8 @@ public final class Config {
         OPTIONS.add("checkVersion");
         OPTIONS.add("updateMetrics");
         OPTIONS.add("resendLostPlayers");
+        OPTIONS.add("saveInterval");
+        OPTIONS.add("gateStore");
 
         options = new Options(Config.class, OPTIONS, "trp", new OptionsListener() {
             public void onOptionSet(Context ctx, String name, String value) {
@@ -95,9 +97,11 @@ public final class Config {
     }
 
     public static void load(Context ctx) {
+        Persister.flush();
         File confFile = getConfigFile();
         config = new TypeMap(confFile);
         config.load();
+        Persister.loaded(confFile);
 
         int version = config.getInt("configVersion", -9999);
 
@@ -142,6 +146,7 @@ public final class Config {
         }
 
         ctx.sendLog("loaded configuration");
+        GateStore.configure(getGateStore().equals("binary"));
         Worlds.onConfigLoad(ctx);
         Servers.onConfigLoad(ctx);
         Network.onConfigLoad(ctx);
@@ -157,9 +162,7 @@ public final class Config {
         Servers.onConfigSave();
         APIBackend.onConfigSave();
         Pins.onConfigSave();
-        File configDir = Global.plugin.getDataFolder();
-        if (! configDir.exists()) configDir.mkdirs();
-        config.save();
+        Persister.save(config.getFile(), config.clone());
         if (ctx != null)
             ctx.sendLog("saved configuration");
     }
@@ -512,6 +515,29 @@ public final class Config {
         setPropertyDirect("global.worldLoadDelay", i);
     }
 
+    public static int getSaveInterval() {
+        return config.getInt("global.saveInterval", 5000);
+    }
+
+    public static void setSaveInterval(int i) {
+        if (i < 0)
+            throw new IllegalArgumentException("saveInterval must be at least 0");
+        config.set("global.saveInterval", i);
+    }
+
+    public static String getGateStore() {
+        return config.getString("global.gateStore", "yaml");
+    }
+
+    public static void setGateStore(String s) {
+        if (s == null) s = "yaml";
+        s = s.toLowerCase();
+        if ((! s.equals("yaml")) && (! s.equals("binary")))
+            throw new IllegalArgumentException("gateStore must be yaml or binary");
+        config.set("global.gateStore", s);
+        GateStore.configure(s.equals("binary"));
+    }
+
     public static boolean getShowGatesSavedMessage() {
         return config.getBoolean("global.showGatesSavedMessages", true);
     }
@@ -30,7 +30,7 @@ public final class Countdown {
     private Player player;
     private LocalGateImpl gate;
     private int timeRemaining;
-    private int timer;
+    private Timers.Timer timer;
 
     public Countdown(Player player, LocalGateImpl gate) {
         this.player = player;
@@ -48,7 +48,7 @@ public final class Countdown {
     public void start() {
         ReservationImpl.addCountdown(this);
         timeRemaining = gate.getCountdown();
-        timer = 0;
+        timer = null;
         String format = expand(gate.getCountdownFormat());
         if (format != null)
             player.sendMessage(format);
@@ -56,8 +56,8 @@ public final class Countdown {
     }
 
     public void cancel() {
-        if (timer != 0)
-            Utils.cancelTask(timer);
+        if (timer != null)
+            timer.cancel();
         ReservationImpl.removeCountdown(this);
         String format = expand(gate.getCountdownCancelFormat());
         if (format != null)
@@ -85,7 +85,7 @@ public final class Countdown {
     }
 
     private void schedule() {
-        timer = Utils.fireDelayed(new Runnable() {
+        timer = Timers.schedule("countdown", new Runnable() {
             public void run() {
                 tick();
             }
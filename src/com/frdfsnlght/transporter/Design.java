@@ -121,7 +121,11 @@ public class Design {
     private Map<String,String> replaceItems = new HashMap<String,String>();
 
     private List<Pattern> buildWorlds = null;
+
+    // results of matching buildWorlds, by world name
+    private final Map<String,Boolean> buildableWorlds = new HashMap<String,Boolean>();
     private List<DesignBlock> blocks = null;
+    private List<ScreenTemplate> screenTemplates = null;
 
     private int sizeX, sizeY, sizeZ;    // calculated
 
@@ -249,18 +253,18 @@ public class Design {
         String pattern = conf.getString("buildWorlds");
         if (pattern != null)
             try {
-                buildWorlds.add(Pattern.compile(pattern));
+                buildWorlds.add(Patterns.compile(pattern));
             } catch (PatternSyntaxException pse) {
                 throw new DesignException("invalid buildWorld pattern '%s': %s", pattern, pse.getMessage());
             }
         else {
             List<String> patternList = conf.getStringList("buildWorlds", null);
             if (patternList == null)
-                buildWorlds.add(Pattern.compile(".*"));
+                buildWorlds.add(Patterns.compile(".*"));
             else {
                 for (String pat : patternList) {
                     try {
-                        buildWorlds.add(Pattern.compile(pat));
+                        buildWorlds.add(Patterns.compile(pat));
                     } catch (PatternSyntaxException pse) {
                         throw new DesignException("invalid buildWorld pattern '%s': %s", pat, pse.getMessage());
                     }
@@ -372,6 +376,10 @@ public class Design {
 //            throw new DesignException("must have at least one switch block because multiLink is true");
         if (spawnCount == 0)
             throw new DesignException("must have at least one spawn block");
+
+        screenTemplates = new ArrayList<ScreenTemplate>();
+        for (DesignBlock db : getScreenBlocks())
+            screenTemplates.add(new ScreenTemplate(this, db));
     }
 
     public void dump(Context ctx) {
@@ -687,9 +695,17 @@ public class Design {
 
     public boolean isBuildableInWorld(World world) {
         String worldName = world.getName();
-        for (Pattern pattern : buildWorlds)
-            if (pattern.matcher(worldName).matches()) return true;
-        return false;
+        Boolean buildable = buildableWorlds.get(worldName);
+        if (buildable == null) {
+            buildable = false;
+            for (Pattern pattern : buildWorlds)
+                if (pattern.matcher(worldName).matches()) {
+                    buildable = true;
+                    break;
+                }
+            buildableWorlds.put(worldName, buildable);
+        }
+        return buildable;
     }
 
     public Map<Material,Integer> getInventoryBlocks() {
@@ -711,14 +727,7 @@ public class Design {
 
         // must be in a buildable world
         World world = location.getWorld();
-        String worldName = world.getName();
-        boolean matched = false;
-        for (Pattern pattern : buildWorlds)
-            if (pattern.matcher(worldName).matches()) {
-                matched = true;
-                break;
-            }
-        if (! matched)
+        if (! isBuildableInWorld(world))
             throw new DesignException("unable to build in this world");
 
         DesignBlock insertBlock = getInsertBlock();
@@ -789,79 +798,21 @@ public class Design {
         Utils.debug("checking design '%s'", name);
 
         // must be in a buildable world
-        World world = location.getWorld();
-        String worldName = world.getName();
-        boolean matched = false;
-        for (Pattern pattern : buildWorlds)
-            if (pattern.matcher(worldName).matches()) {
-                matched = true;
-                break;
-            }
-        if (! matched) return null;
+        if (! isBuildableInWorld(location.getWorld())) return null;
         Utils.debug("world is OK");
 
         Block targetBlock = location.getBlock();
-        BlockFace direction = null;
-        TransformedDesign tDesign = null;
-        matched = false;
-
-        // iterate over each screen trying to find a match with what's around the targetBlock
-        for (DesignBlock screenBlock : getScreenBlocks()) {
-            location = targetBlock.getLocation();
-            direction = screenBlock.getDetail().getBuildBlock().matchTypeAndDirection(targetBlock);
-            if (direction == null) continue;
-
-            Utils.debug("screen %s,%s,%s", screenBlock.getX(), screenBlock.getY(), screenBlock.getZ());
-            Utils.debug("direction=%s", direction);
-
-            // adjust location to represent 0,0,0 of design blocks
-            switch (direction) {
-                case NORTH:
-                    translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
-//                    translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
-                    break;
-                case EAST:
-                    translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
-//                    translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
-                    break;
-                case SOUTH:
-                    translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
-//                    translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
-                    break;
-                case WEST:
-                    translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
-//                    translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
-                    break;
-                default:
-                    continue;
-            }
-            Utils.debug("matched a screen");
-            Utils.debug("direction=%s", direction);
-
-            tDesign = new TransformedDesign(this, location, direction);
-
-            // check the target blocks to make sure they match the design
-            matched = true;
-            while (tDesign.hasMoreBlocks()) {
-                GateBlock gb = tDesign.nextBlock();
-                if (gb.getDetail().isMatchable() &&
-                    (! gb.getDetail().getBuildBlock().matches(gb.getLocation()))) {
-                    matched = false;
-                    break;
-                }
-            }
-            tDesign.reset();
-            if (matched) break;
-            Utils.debug("blocks don't match");
-        }
-
-        if (! matched) {
-            Utils.debug("didn't match design");
-            return null;
+        ChunkSnapshots snapshots = new ChunkSnapshots(location.getWorld());
+        for (ScreenTemplate template : screenTemplates) {
+            DesignMatch match = template.match(targetBlock, snapshots);
+            if (match != null) return match;
         }
-        Utils.debug("matched design!");
+        Utils.debug("didn't match design");
+        return null;
+    }
 
-        return new DesignMatch(this, tDesign, world, direction);
+    List<ScreenTemplate> getScreenTemplates() {
+        return screenTemplates;
     }
 
     // Returns a new gate if a match in the surrounding blocks is found, otherwise null.
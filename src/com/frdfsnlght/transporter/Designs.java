@@ -21,6 +21,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 
 /**
  *
@@ -29,10 +31,13 @@ import org.bukkit.Location;
 public final class Designs {
 
     private static final Map<String,Design> designs = new HashMap<String,Design>();
+    // screen templates of the creatable designs allowed in each world, keyed by world name and screen type
+    private static final Map<String,Map<Integer,List<ScreenTemplate>>> worldScreens = new HashMap<String,Map<Integer,List<ScreenTemplate>>>();
     private static Map<String,List<SavedBlock>> buildUndos = new HashMap<String,List<SavedBlock>>();
 
     public static void load(Context ctx) {
         designs.clear();
+        worldScreens.clear();
         File designsFolder = new File(Global.plugin.getDataFolder(), "designs");
         for (File designFile : Utils.listYAMLFiles(designsFolder)) {
             try {
@@ -58,6 +63,7 @@ public final class Designs {
         if (designs.containsKey(design.getName()))
             throw new DesignException("a design with the same type already exists");
         designs.put(design.getName(), design);
+        worldScreens.clear();
     }
 
     public static Design get(String name) {
@@ -96,14 +102,37 @@ public final class Designs {
     // Attempts to match the blocks around the given location with a design.
     // The location should be the location of a design's screen.
     public static DesignMatch matchScreen(Location location) {
-        for (Design design : designs.values()) {
-            if (! design.isCreatable()) continue;
-            DesignMatch match = design.matchScreen(location);
+        Block targetBlock = location.getBlock();
+        List<ScreenTemplate> templates = getWorldScreens(location.getWorld()).get(targetBlock.getTypeId());
+        if (templates == null) return null;
+        ChunkSnapshots snapshots = new ChunkSnapshots(location.getWorld());
+        for (ScreenTemplate template : templates) {
+            DesignMatch match = template.match(targetBlock, snapshots);
             if (match != null) return match;
         }
         return null;
     }
 
+    private static Map<Integer,List<ScreenTemplate>> getWorldScreens(World world) {
+        Map<Integer,List<ScreenTemplate>> screens = worldScreens.get(world.getName());
+        if (screens != null) return screens;
+        screens = new HashMap<Integer,List<ScreenTemplate>>();
+        for (Design design : designs.values()) {
+            if (! design.isCreatable()) continue;
+            if (! design.isBuildableInWorld(world)) continue;
+            for (ScreenTemplate template : design.getScreenTemplates()) {
+                List<ScreenTemplate> templates = screens.get(template.getScreenType());
+                if (templates == null) {
+                    templates = new ArrayList<ScreenTemplate>();
+                    screens.put(template.getScreenType(), templates);
+                }
+                templates.add(template);
+            }
+        }
+        worldScreens.put(world.getName(), screens);
+        return screens;
+    }
+
     static void setBuildUndo(String playerName, List<SavedBlock> savedBlocks) {
         if (playerName == null) return;
         buildUndos.put(playerName, savedBlocks);
@@ -15,11 +15,11 @@
  */
 package com.frdfsnlght.transporter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.bukkit.Location;
 import org.bukkit.World;
 
@@ -31,6 +31,9 @@ public final class GateMap {
 
     private Map<World,WorldMap> worlds = new HashMap<World,WorldMap>();
 
+    // bumped whenever a volume is added or removed
+    private int version = 0;
+
     public GateMap() {}
 
     public void put(Volume volume) {
@@ -38,25 +41,36 @@ public final class GateMap {
         if (! worlds.containsKey(world))
             worlds.put(world, new WorldMap());
         worlds.get(world).add(volume);
+        version++;
     }
 
     public LocalGateImpl getGate(Location location) {
-        World world = location.getWorld();
-        WorldMap wmap = worlds.get(world);
+        WorldMap wmap = worlds.get(location.getWorld());
         if (wmap == null) return null;
-        VolumeNode node = wmap.getNode(location);
-        if (node == null) return null;
-        return node.getGate(location);
+        return wmap.getGate(location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
     public void removeGate(LocalGateImpl gate) {
         World world = gate.getWorld();
         if (worlds.containsKey(world))
             worlds.get(world).removeGate(gate);
+        version++;
     }
 
     public void removeWorld(World world) {
         worlds.remove(world);
+        version++;
+    }
+
+    // Returns true if any volume overlaps the chunk.
+    public boolean hasChunk(World world, int cx, int cz) {
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return false;
+        return wmap.hasChunk(chunkKey(cx, cz));
+    }
+
+    public int getVersion() {
+        return version;
     }
 
     public int size() {
@@ -66,10 +80,10 @@ public final class GateMap {
         return count;
     }
 
-    public int nodeCount() {
+    public int chunkCount() {
         int count = 0;
         for (WorldMap wmap : worlds.values())
-            count+= wmap.nodeCount();
+            count+= wmap.chunkCount();
         return count;
     }
 
@@ -115,6 +129,9 @@ public final class GateMap {
         public Location toLocation(World world) {
             return new Location(world, x, y, z);
         }
+        public long pack() {
+            return GateMap.pack(x, y, z);
+        }
         @Override
         public boolean equals(Object o) {
             if (! (o instanceof Point)) return false;
@@ -123,7 +140,7 @@ public final class GateMap {
         }
         @Override
         public int hashCode() {
-            return x + y + x;
+            return (((x * 31) + y) * 31) + z;
         }
         @Override
         public String toString() {
@@ -147,103 +164,142 @@ public final class GateMap {
             this(new Point(l1), new Point(l2));
         }
         public void set(Point p) {
-            min.x = max.x = p.x;
-            min.y = max.y = p.y;
-            min.z = max.z = p.z;
+            set(p.x, p.y, p.z);
+        }
+        public void set(int x, int y, int z) {
+            min.x = max.x = x;
+            min.y = max.y = y;
+            min.z = max.z = z;
         }
         public void expand(Point p) {
-            min.x = Math.min(min.x, p.x);
-            min.y = Math.min(min.y, p.y);
-            min.z = Math.min(min.z, p.z);
-            max.x = Math.max(max.x, p.x);
-            max.y = Math.max(max.y, p.y);
-            max.z = Math.max(max.z, p.z);
+            expand(p.x, p.y, p.z);
+        }
+        public void expand(int x, int y, int z) {
+            min.x = Math.min(min.x, x);
+            min.y = Math.min(min.y, y);
+            min.z = Math.min(min.z, z);
+            max.x = Math.max(max.x, x);
+            max.y = Math.max(max.y, y);
+            max.z = Math.max(max.z, z);
         }
         public void expand(Bounds b) {
             expand(b.min);
             expand(b.max);
         }
         public boolean contains(Location loc) {
-            return (loc.getBlockX() >= min.x) && (loc.getBlockX() <= max.x) &&
-                   (loc.getBlockZ() >= min.z) && (loc.getBlockZ() <= max.z) &&
-                   (loc.getBlockY() >= min.y) && (loc.getBlockY() <= max.y);
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            return (x >= min.x) && (x <= max.x) &&
+                   (z >= min.z) && (z <= max.z) &&
+                   (y >= min.y) && (y <= max.y);
         }
         public int sizeX() { return max.x - min.x; }
         public int sizeY() { return max.y - min.y; }
         public int sizeZ() { return max.z - min.z; }
-        public Bounds trim(Point p, int quad) {
-            switch (quad) {
-                case 0:
-                    if ((min.x >= p.x) || (min.z >= p.z)) return null;
-                    return new Bounds(min, new Point(Math.min(max.x, p.x - 1), max.y, Math.min(max.z, p.z - 1)));
-                case 1:
-                    if ((min.x >= p.x) || (max.z < p.z)) return null;
-                    return new Bounds(new Point(min.x, min.y, max.z), new Point(Math.min(max.x, p.x - 1), max.y, Math.max(min.z, p.z)));
-                case 2:
-                    if ((max.x < p.x) || (min.z >= p.z)) return null;
-                    return new Bounds(new Point(Math.max(min.x, p.x), min.y, Math.min(max.z, p.z - 1)), new Point(max.x, max.y, min.z));
-                case 3:
-                    if ((max.x < p.x) || (max.z < p.z)) return null;
-                    return new Bounds(max, new Point(Math.max(min.x, p.x), min.y, Math.max(min.z, p.z)));
-                default:
-                    return null;
-            }
-        }
         @Override
         public String toString() {
             return "[" + min + "," + max + "]";
         }
     }
 
-    private class WorldMap {
+    private final class WorldMap {
 
-        private Set<Volume> volumes = new HashSet<Volume>();
-        private VolumeNode root = null;
+        // Volumes indexed by the gate they belong to
+        private final Map<LocalGateImpl,List<Volume>> gateVolumes = new HashMap<LocalGateImpl,List<Volume>>();
 
-        void add(Volume volume) {
-            volumes.add(volume);
-            recalculate();
-        }
+        // Volumes indexed by every chunk they overlap
+        private final LongMap<Volume[]> chunks = new LongMap<Volume[]>();
+
+        private int volumeCount = 0;
 
-        VolumeNode getNode(Location loc) {
-            if (root == null) return null;
-            return root.getNode(loc);
+        void add(Volume volume) {
+            if (volume.isEmpty()) return;
+            List<Volume> vols = gateVolumes.get(volume.gate);
+            if (vols == null) {
+                vols = new ArrayList<Volume>(1);
+                gateVolumes.put(volume.gate, vols);
+            }
+            vols.add(volume);
+            volumeCount++;
+            Bounds b = volume.bounds;
+            for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++)
+                    addToChunk(chunkKey(cx, cz), volume);
+        }
+
+        LocalGateImpl getGate(int x, int y, int z) {
+            Volume[] vols = chunks.get(chunkKey(x >> 4, z >> 4));
+            if (vols == null) return null;
+            for (int i = 0; i < vols.length; i++)
+                if (vols[i].contains(x, y, z)) return vols[i].gate;
+            return null;
         }
 
         void removeGate(LocalGateImpl gate) {
-            for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); )
-                if (i.next().getGate() == gate)
-                    i.remove();
-            recalculate();
+            List<Volume> vols = gateVolumes.remove(gate);
+            if (vols == null) return;
+            for (Volume volume : vols) {
+                volumeCount--;
+                Bounds b = volume.bounds;
+                for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                    for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++)
+                        removeFromChunk(chunkKey(cx, cz), volume);
+            }
         }
 
         int size() {
-            return volumes.size();
+            return volumeCount;
         }
 
-        int nodeCount() {
-            if (root == null) return 0;
-            return root.nodeCount();
+        int chunkCount() {
+            return chunks.size();
         }
 
-        private void recalculate() {
-//            Utils.debug("!!!! recalculate worldmap !!!!");
-//            Utils.debug(toString());
+        boolean hasChunk(long key) {
+            return chunks.containsKey(key);
+        }
 
-            if (root != null) root.destroy();
-            if ((volumes == null) || volumes.isEmpty()) return;
-            root = new VolumeNode(null, volumes);
+        // Cells are small copy-on-write arrays so lookups can walk them without an iterator.
+        private void addToChunk(long key, Volume volume) {
+            Volume[] vols = chunks.get(key);
+            if (vols == null) {
+                chunks.put(key, new Volume[] { volume });
+                return;
+            }
+            Volume[] newVols = Arrays.copyOf(vols, vols.length + 1);
+            newVols[vols.length] = volume;
+            chunks.put(key, newVols);
+        }
+
+        private void removeFromChunk(long key, Volume volume) {
+            Volume[] vols = chunks.get(key);
+            if (vols == null) return;
+            for (int i = 0; i < vols.length; i++) {
+                if (vols[i] != volume) continue;
+                if (vols.length == 1) {
+                    chunks.remove(key);
+                    return;
+                }
+                Volume[] newVols = new Volume[vols.length - 1];
+                System.arraycopy(vols, 0, newVols, 0, i);
+                System.arraycopy(vols, i + 1, newVols, i, vols.length - i - 1);
+                chunks.put(key, newVols);
+                return;
+            }
         }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("WorldMap[");
-            sb.append(volumes.size()).append(" volumes:\n");
-            for (Volume volume : volumes) {
-                sb.append(volume.toString());
-                sb.append(",\n");
-            }
+            sb.append(volumeCount).append(" volumes in ");
+            sb.append(chunks.size()).append(" chunks:\n");
+            for (List<Volume> vols : gateVolumes.values())
+                for (Volume volume : vols) {
+                    sb.append(volume.toString());
+                    sb.append(",\n");
+                }
             sb.append("]");
             return sb.toString();
         }
@@ -253,97 +309,44 @@ public final class GateMap {
     public static final class Volume {
         protected LocalGateImpl gate;
         protected Bounds bounds = new Bounds();
-        protected Set<Point> points = null;
+        protected LongSet points = null;
+        protected boolean empty = true;
         public Volume(LocalGateImpl gate) {
             this.gate = gate;
         }
         public World getWorld() { return gate.getWorld(); }
         public Bounds getBounds() { return bounds; }
         public LocalGateImpl getGate() { return gate; }
+        public boolean isEmpty() { return empty; }
         public void addPoint(Point p) {
+            addPoint(p.x, p.y, p.z);
+        }
+        public void addPoint(int x, int y, int z) {
             if (points == null) {
-                points = new HashSet<Point>();
-                points.add(p);
-                bounds.set(p);
-            } else {
-                points.add(p);
-                bounds.expand(p);
-            }
+                points = new LongSet();
+                bounds.set(x, y, z);
+            } else
+                bounds.expand(x, y, z);
+            points.add(pack(x, y, z));
+            empty = false;
         }
         public void setBounds(Bounds b) {
             bounds.min = b.min;
             bounds.max = b.max;
+            empty = false;
         }
         public void setBounds(Point p1, Point p2) {
             bounds.set(p1);
             bounds.expand(p2);
+            empty = false;
         }
         public boolean contains(Location loc) {
-            Point lp = new Point(loc);
-            if (points == null) {
-                if (bounds.contains(loc)) {
-                    return true;
-                }
-                return false;
-            }
-            for (Point p : points)
-                if (p.equals(lp)) {
-                    return true;
-                }
-            return false;
-        }
-        public Volume[] split(Point center) {
-            Volume[] vols = new Volume[4];
-            // check if we're completely in a quad
-            if (bounds.max.x < center.x) {
-                if (bounds.max.z < center.z) {
-                    vols[0] = this;
-                    return vols;
-                }
-                if (bounds.min.z >= center.z) {
-                    vols[1] = this;
-                    return vols;
-                }
-            } else if (bounds.min.x >= center.x) {
-                if (bounds.max.z < center.z) {
-                    vols[2] = this;
-                    return vols;
-                }
-                if (bounds.min.z >= center.z) {
-                    vols[3] = this;
-                    return vols;
-                }
-            }
-
-            if (points == null) {
-                for (int quad = 0; quad < 4; quad++) {
-                    Bounds b = bounds.trim(center, quad);
-                    if (b == null) continue;
-                    vols[quad] = new Volume(gate);
-                    vols[quad].setBounds(b);
-                }
-
-            } else {
-                for (Point p : points)
-                    if (p.x < center.x) {
-                        if (p.z < center.z) {
-                            if (vols[0] == null) vols[0] = new Volume(gate);
-                            vols[0].addPoint(p);
-                        } else {
-                            if (vols[1] == null) vols[1] = new Volume(gate);
-                            vols[1].addPoint(p);
-                        }
-                    } else {
-                        if (p.z < center.z) {
-                            if (vols[2] == null) vols[2] = new Volume(gate);
-                            vols[2].addPoint(p);
-                        } else {
-                            if (vols[3] == null) vols[3] = new Volume(gate);
-                            vols[3].addPoint(p);
-                        }
-                    }
-            }
-            return vols;
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            if (! bounds.contains(x, y, z)) return false;
+            if (points == null) return true;
+            return points.contains(pack(x, y, z));
         }
         @Override
         public String toString() {
@@ -365,101 +368,17 @@ public final class GateMap {
         }
     }
 
-    private final class VolumeNode {
-        private static final int LEAF_SIZE = 16;
-        VolumeNode parent = null;
-        Point center;
-        Bounds bounds;
-        VolumeNode[] children = null;
-        Set<Volume> volumes = null;
-        VolumeNode(VolumeNode parent, Set<Volume> volumes) {
-            this.parent = parent;
-            center = new Point();
-
-            // find the center
-            for (Volume vol : volumes) {
-                center.x += vol.bounds.min.x + vol.bounds.max.x;
-                center.y += vol.bounds.min.y + vol.bounds.max.y;
-                center.z += vol.bounds.min.z + vol.bounds.max.z;
-            }
-            center.x = center.x / (volumes.size() * 2);
-            center.y = center.y / (volumes.size() * 2);
-            center.z = center.z / (volumes.size() * 2);
-
-            bounds = new Bounds();
-            bounds.set(center);
-            Set<Volume> vols0 = new HashSet<Volume>();
-            Set<Volume> vols1 = new HashSet<Volume>();
-            Set<Volume> vols2 = new HashSet<Volume>();
-            Set<Volume> vols3 = new HashSet<Volume>();
-
-            // find bounds and create quads
-            for (Volume vol : volumes) {
-                bounds.expand(vol.bounds);
-                Volume[] vols = vol.split(center);
-                if (vols[0] != null) vols0.add(vols[0]);
-                if (vols[1] != null) vols1.add(vols[1]);
-                if (vols[2] != null) vols2.add(vols[2]);
-                if (vols[3] != null) vols3.add(vols[3]);
-            }
-
-            // limit tree growth
-            if ((bounds.sizeX() <= LEAF_SIZE) &&
-                (bounds.sizeZ() <= LEAF_SIZE)) {
-                this.volumes = volumes;
-                return;
-            }
+    // Packs block coordinates into 26 bits of x, 26 bits of z and 12 bits of y.
+    public static long pack(int x, int y, int z) {
+        return (((long)x & 0x3FFFFFFL) << 38) | (((long)z & 0x3FFFFFFL) << 12) | ((long)y & 0xFFFL);
+    }
 
-            children = new VolumeNode[4];
-            if (! vols0.isEmpty()) children[0] = new VolumeNode(this, vols0);
-            if (! vols1.isEmpty()) children[1] = new VolumeNode(this, vols1);
-            if (! vols2.isEmpty()) children[2] = new VolumeNode(this, vols2);
-            if (! vols3.isEmpty()) children[3] = new VolumeNode(this, vols3);
+    public static Point unpack(long packed) {
+        return new Point((int)(packed >> 38), (int)((packed << 52) >> 52), (int)((packed << 26) >> 38));
+    }
 
-        }
-        void destroy() {
-            volumes = null;
-            parent = null;
-            if (children != null) {
-                for (int i = 0; i < 4; i++)
-                    if (children[i] != null) children[i].destroy();
-                children = null;
-            }
-        }
-        int nodeCount() {
-            if (children == null) return 1;
-            int count = 1;
-            for (VolumeNode child : children)
-                if (child != null) count += child.nodeCount();
-            return count;
-        }
-        LocalGateImpl getGate(Location loc) {
-            if ((children != null) || (volumes == null)) return null;
-            for (Volume vol : volumes)
-                if (vol.contains(loc)) return vol.gate;
-            return null;
-        }
-        VolumeNode getNode(Location loc) {
-            if (! bounds.contains(loc)) return null;
-            if (children == null) return this;
-            if (loc.getBlockX() < center.x) {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[0] == null) return null;
-                    return children[0].getNode(loc);
-                } else {
-                    if (children[1] == null) return null;
-                    return children[1].getNode(loc);
-                }
-            } else {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[2] == null) return null;
-                    return children[2].getNode(loc);
-                } else {
-                    if (children[3] == null) return null;
-                    return children[3].getNode(loc);
-                }
-            }
-        }
+    static long chunkKey(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xffffffffL);
     }
 
 }
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.GateException;
+import com.frdfsnlght.transporter.api.TypeMap;
+import com.frdfsnlght.transporter.net.MessageCodec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Optional binary storage for local gates.
+ * <p>
+ * Each world's gates are kept in a single append-only log, gates.dat, in
+ * the folder that would otherwise hold one YAML file per gate. Saving a
+ * gate appends its encoded configuration and deleting one appends a
+ * tombstone. gates.idx records where the latest copy of each gate is, and
+ * is memory-mapped when the store is opened so the log doesn't have to be
+ * scanned; anything appended after the index was written is replayed.
+ * The log is compacted once most of it is superseded records.
+ * </p>
+ * <p>
+ * Gates are keyed by the name of the YAML file they would otherwise be
+ * saved in, so renaming and deleting gates works the same either way.
+ * Any YAML files found when a store is opened are imported into it, and
+ * when the option is switched back to YAML the log is exported to YAML
+ * files, without replacing any that are already there.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class GateStore {
+
+    public static final String LOG_FILE = "gates.dat";
+    public static final String INDEX_FILE = "gates.idx";
+
+    private static final int LOG_MAGIC = 0x5452474c;
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_HEADER_SIZE = 16;
+    private static final int INDEX_MAGIC = 0x54524749;
+    private static final int INDEX_VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    // record length and CRC
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // Don't bother compacting logs with less dead space than this
+    private static final long MIN_COMPACT_SIZE = 256 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static volatile boolean enabled = false;
+
+    // indexed by gates folder
+    private static final Map<File,GateStore> stores = new HashMap<File,GateStore>();
+
+    // Called from the main thread whenever the configuration is loaded.
+    public static void configure(boolean binary) {
+        if (binary == enabled) return;
+        if (! binary) closeAll();
+        enabled = binary;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Returns true if the file is a gate file that lives in a store.
+    public static boolean handles(File file) {
+        if (! enabled) return false;
+        File parent = file.getParentFile();
+        return (parent != null) && parent.getName().equals("gates") && file.getName().endsWith(".yml");
+    }
+
+    // Returns the gate files in the folder, importing or exporting the folder's gates
+    // if they're in the other layout.
+    public static File[] listGateFiles(File gatesFolder) {
+        if (enabled) {
+            try {
+                return get(gatesFolder).listFiles();
+            } catch (IOException e) {
+                Utils.severe(e, "unable to open the gate store in %s:", gatesFolder.getAbsolutePath());
+                return new File[0];
+            }
+        }
+        File logFile = new File(gatesFolder, LOG_FILE);
+        if (logFile.exists())
+            export(gatesFolder);
+        return Utils.listYAMLFiles(gatesFolder);
+    }
+
+    public static TypeMap read(File file) throws GateException {
+        try {
+            TypeMap data = get(file.getParentFile()).get(file.getName());
+            if (data == null)
+                throw new GateException("%s not found", file.getAbsolutePath());
+            TypeMap conf = new TypeMap(file);
+            conf.putAll(data);
+            return conf;
+        } catch (IOException e) {
+            throw new GateException("unable to read %s: %s", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    public static void write(File file, TypeMap conf) throws IOException {
+        get(file.getParentFile()).put(file.getName(), conf);
+    }
+
+    public static boolean delete(File file) {
+        try {
+            return get(file.getParentFile()).remove(file.getName());
+        } catch (IOException e) {
+            Utils.warning("unable to delete %s: %s", file.getAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes each store's index and closes it.
+    public static void closeAll() {
+        synchronized (stores) {
+            for (GateStore store : stores.values())
+                store.close();
+            stores.clear();
+        }
+    }
+
+    private static GateStore get(File gatesFolder) throws IOException {
+        synchronized (stores) {
+            GateStore store = stores.get(gatesFolder);
+            if (store == null) {
+                store = new GateStore(gatesFolder);
+                store.open(true);
+                stores.put(gatesFolder, store);
+            }
+            return store;
+        }
+    }
+
+    private static void export(File gatesFolder) {
+        GateStore store = new GateStore(gatesFolder);
+        try {
+            store.open(false);
+            int count = 0;
+            for (String key : store.keys()) {
+                File file = new File(gatesFolder, key);
+                // anything saved since the store was closed is newer
+                if (file.exists()) continue;
+                TypeMap data = store.get(key);
+                if (data == null) continue;
+                TypeMap conf = new TypeMap();
+                conf.putAll(data);
+                conf.save(file);
+                count++;
+            }
+            store.close();
+            File logFile = new File(gatesFolder, LOG_FILE);
+            if (! logFile.renameTo(new File(gatesFolder, LOG_FILE + ".exported")))
+                Utils.warning("unable to rename %s, it will be exported again next time", logFile.getAbsolutePath());
+            new File(gatesFolder, INDEX_FILE).delete();
+            Utils.info("exported %d gates from %s", count, logFile.getAbsolutePath());
+        } catch (IOException e) {
+            store.close();
+            Utils.severe(e, "unable to export the gate store in %s:", gatesFolder.getAbsolutePath());
+        }
+    }
+
+    private final File folder;
+    private final File logFile;
+    private final File indexFile;
+    private RandomAccessFile log = null;
+    private FileChannel channel = null;
+    private long logId = 0;
+    private long logEnd = 0;
+
+    // offset, size and body CRC of the latest record for each gate
+    private final Map<String,long[]> index = new HashMap<String,long[]>();
+    private long liveBytes = 0;
+    private long deadBytes = 0;
+
+    private GateStore(File folder) {
+        this.folder = folder;
+        logFile = new File(folder, LOG_FILE);
+        indexFile = new File(folder, INDEX_FILE);
+    }
+
+    private synchronized void open(boolean importYAML) throws IOException {
+        if (! folder.exists())
+            folder.mkdirs();
+        openLog();
+        boolean opened = false;
+        try {
+            replay(readIndex());
+            if (importYAML)
+                importYAML();
+            opened = true;
+        } finally {
+            // don't leave the log open if the store won't be used
+            if (! opened) {
+                try {
+                    log.close();
+                } catch (IOException e) {}
+                log = null;
+                channel = null;
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = new RandomAccessFile(logFile, "rw");
+        channel = log.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        if (channel.size() == 0) {
+            logId = new Random().nextLong();
+            header.putInt(LOG_MAGIC);
+            header.putInt(LOG_VERSION);
+            header.putLong(logId);
+            header.flip();
+            channel.write(header, 0);
+            return;
+        }
+        if ((! readFully(header, 0)) ||
+            (header.getInt(0) != LOG_MAGIC) ||
+            (header.getInt(4) != LOG_VERSION)) {
+            log.close();
+            throw new IOException(logFile.getAbsolutePath() + " is not a gate store");
+        }
+        logId = header.getLong(8);
+    }
+
+    private synchronized void close() {
+        if (channel == null) return;
+        try {
+            writeIndex();
+        } catch (IOException e) {
+            Utils.warning("unable to write %s: %s", indexFile.getAbsolutePath(), e.getMessage());
+        }
+        try {
+            log.close();
+        } catch (IOException e) {}
+        log = null;
+        channel = null;
+    }
+
+    private synchronized List<String> keys() {
+        List<String> keys = new ArrayList<String>(index.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private File[] listFiles() {
+        List<String> keys = keys();
+        File[] files = new File[keys.size()];
+        for (int i = 0; i < files.length; i++)
+            files[i] = new File(folder, keys.get(i));
+        return files;
+    }
+
+    private TypeMap get(String key) throws IOException {
+        ByteBuffer record;
+        synchronized (this) {
+            if (channel == null)
+                throw new IOException("the gate store is closed");
+            long[] entry = index.get(key);
+            if (entry == null) return null;
+            record = readRecord(entry[0]);
+        }
+        if (record == null)
+            throw new IOException("corrupt record for " + key);
+        record.get();
+        skipKey(record);
+        return MessageCodec.decode(record);
+    }
+
+    private synchronized void put(String key, TypeMap conf) throws IOException {
+        if (channel == null)
+            throw new IOException("the gate store is closed");
+        byte[] body = MessageCodec.encode(conf);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        long[] entry = index.get(key);
+        // nothing to do if the gate hasn't changed
+        if ((entry != null) && (entry[2] == crc.getValue()) && (entry[1] == recordSize(key, body.length))) return;
+        append(OP_PUT, key, body);
+        channel.force(false);
+        compact();
+    }
+
+    private synchronized boolean remove(String key) throws IOException {
+        if (channel == null)
+            throw new IOException("the gate store is closed");
+        if (! index.containsKey(key)) return false;
+        append(OP_DELETE, key, new byte[0]);
+        channel.force(false);
+        compact();
+        return true;
+    }
+
+    private void importYAML() throws IOException {
+        // these will have been saved since the store was last open
+        File[] files = Utils.listYAMLFiles(folder);
+        if ((files == null) || (files.length == 0)) return;
+        File importedFolder = new File(folder, "imported");
+        importedFolder.mkdirs();
+        int count = 0;
+        for (File file : files) {
+            TypeMap conf = new TypeMap(file);
+            conf.load();
+            if (conf.isEmpty()) {
+                Utils.warning("skipped importing %s", file.getAbsolutePath());
+                continue;
+            }
+            byte[] body;
+            try {
+                body = MessageCodec.encode(conf);
+            } catch (IllegalArgumentException e) {
+                Utils.warning("unable to import %s, leaving it where it is: %s", file.getAbsolutePath(), e.getMessage());
+                continue;
+            }
+            append(OP_PUT, file.getName(), body);
+            File importedFile = new File(importedFolder, file.getName());
+            importedFile.delete();
+            if (! file.renameTo(importedFile))
+                Utils.warning("unable to move %s after importing it", file.getAbsolutePath());
+            count++;
+        }
+        channel.force(false);
+        writeIndex();
+        Utils.info("imported %d gates into %s", count, logFile.getAbsolutePath());
+    }
+
+    private void append(byte op, String key, byte[] body) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int length = 1 + 2 + keyBytes.length + body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put(op);
+        buffer.putShort((short)keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        buffer.putInt(4, (int)crc.getValue());
+        buffer.flip();
+        long offset = logEnd;
+        while (buffer.hasRemaining())
+            offset += channel.write(buffer, offset);
+        applyRecord(op, key, logEnd, HEADER_SIZE + length, body);
+        logEnd = offset;
+    }
+
+    private void applyRecord(byte op, String key, long offset, long size, byte[] body) {
+        long[] old = index.remove(key);
+        if (old != null) {
+            liveBytes -= old[1];
+            deadBytes += old[1];
+        }
+        if (op == OP_PUT) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            index.put(key, new long[] { offset, size, crc.getValue() });
+            liveBytes += size;
+        } else
+            deadBytes += size;
+    }
+
+    // Returns the record's payload, or null if it's missing or damaged.
+    private ByteBuffer readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (! readFully(header, offset)) return null;
+        header.flip();
+        int length = header.getInt();
+        int crcValue = header.getInt();
+        if ((length < 3) || (length > MAX_RECORD_SIZE)) return null;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if (! readFully(record, offset + HEADER_SIZE)) return null;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        if ((int)crc.getValue() != crcValue) return null;
+        record.flip();
+        return record;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read == -1) return false;
+            offset += read;
+        }
+        return true;
+    }
+
+    private void replay(long offset) throws IOException {
+        long size = channel.size();
+        while (offset < size) {
+            ByteBuffer record = readRecord(offset);
+            if (record == null) {
+                // most likely a write that was cut short
+                Utils.warning("discarding %d damaged bytes at the end of %s", size - offset, logFile.getAbsolutePath());
+                channel.truncate(offset);
+                break;
+            }
+            long recordSize = HEADER_SIZE + record.remaining();
+            try {
+                byte op = record.get();
+                String key = readKey(record);
+                byte[] body = new byte[record.remaining()];
+                record.get(body);
+                applyRecord(op, key, offset, recordSize, body);
+            } catch (BufferUnderflowException e) {
+                deadBytes += recordSize;
+            }
+            offset += recordSize;
+        }
+        logEnd = offset;
+    }
+
+    // Returns the log offset to replay from.
+    private long readIndex() throws IOException {
+        index.clear();
+        liveBytes = deadBytes = 0;
+        if (! indexFile.exists()) return LOG_HEADER_SIZE;
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if ((buffer.getInt() != INDEX_MAGIC) || (buffer.getInt() != INDEX_VERSION)) return LOG_HEADER_SIZE;
+            // an index left over from before the log was compacted
+            if (buffer.getLong() != logId) return LOG_HEADER_SIZE;
+            long coveredEnd = buffer.getLong();
+            if (coveredEnd > channel.size()) return LOG_HEADER_SIZE;
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = readKey(buffer);
+                long[] entry = new long[] { buffer.getLong(), buffer.getLong(), buffer.getLong() };
+                index.put(key, entry);
+                liveBytes += entry[1];
+            }
+            deadBytes = coveredEnd - LOG_HEADER_SIZE - liveBytes;
+            return coveredEnd;
+        } catch (BufferUnderflowException e) {
+            Utils.warning("ignoring damaged index %s", indexFile.getAbsolutePath());
+            index.clear();
+            liveBytes = deadBytes = 0;
+            return LOG_HEADER_SIZE;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        int size = 4 + 4 + 8 + 8 + 4;
+        List<byte[]> keys = new ArrayList<byte[]>(index.size());
+        List<long[]> entries = new ArrayList<long[]>(index.size());
+        for (Map.Entry<String,long[]> e : index.entrySet()) {
+            byte[] key = e.getKey().getBytes(UTF8);
+            keys.add(key);
+            entries.add(e.getValue());
+            size += 2 + key.length + 24;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(INDEX_VERSION);
+        buffer.putLong(logId);
+        buffer.putLong(logEnd);
+        buffer.putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            buffer.putShort((short)keys.get(i).length);
+            buffer.put(keys.get(i));
+            for (long l : entries.get(i))
+                buffer.putLong(l);
+        }
+        // if the old index is still mapped and can't be replaced, the log will just be replayed next time
+        Utils.writeFileAtomically(indexFile, buffer.array());
+    }
+
+    // The record is already safe in the log, so a failed compaction only gets reported.
+    private void compact() {
+        try {
+            compactIfNeeded();
+        } catch (IOException e) {
+            Utils.warning("unable to compact %s: %s", logFile.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if ((deadBytes < MIN_COMPACT_SIZE) || (deadBytes < liveBytes)) return;
+        Utils.debug("compacting %s, %d live bytes, %d dead bytes", logFile.getAbsolutePath(), liveBytes, deadBytes);
+        File tmpFile = new File(folder, LOG_FILE + ".tmp");
+        File oldFile = new File(folder, LOG_FILE + ".old");
+        long newLogId = new Random().nextLong();
+        Map<String,long[]> newIndex = new HashMap<String,long[]>();
+        long offset = LOG_HEADER_SIZE;
+        RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+        try {
+            tmp.setLength(0);
+            FileChannel out = tmp.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+            header.putInt(LOG_MAGIC);
+            header.putInt(LOG_VERSION);
+            header.putLong(newLogId);
+            header.flip();
+            while (header.hasRemaining())
+                out.write(header);
+            for (Map.Entry<String,long[]> e : index.entrySet()) {
+                long[] entry = e.getValue();
+                long copied = 0;
+                while (copied < entry[1])
+                    copied += channel.transferTo(entry[0] + copied, entry[1] - copied, out);
+                newIndex.put(e.getKey(), new long[] { offset, entry[1], entry[2] });
+                offset += entry[1];
+            }
+            out.force(false);
+        } finally {
+            tmp.close();
+        }
+
+        // swap the logs so there's always a complete one on disk
+        log.close();
+        oldFile.delete();
+        if ((! logFile.renameTo(oldFile)) || (! tmpFile.renameTo(logFile))) {
+            if (! logFile.exists())
+                oldFile.renameTo(logFile);
+            openLog();
+            throw new IOException("unable to replace " + logFile.getAbsolutePath());
+        }
+        oldFile.delete();
+        openLog();
+        index.clear();
+        index.putAll(newIndex);
+        logEnd = offset;
+        liveBytes = offset - LOG_HEADER_SIZE;
+        deadBytes = 0;
+        writeIndex();
+    }
+
+    private static long recordSize(String key, int bodyLength) {
+        return HEADER_SIZE + 1 + 2 + key.getBytes(UTF8).length + bodyLength;
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        int len = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void skipKey(ByteBuffer buffer) {
+        int len = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + len);
+    }
+
+}
@@ -22,10 +22,21 @@ import com.frdfsnlght.transporter.api.event.LocalGateCreateEvent;
 import com.frdfsnlght.transporter.api.event.LocalGateDestroyEvent;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -39,6 +50,9 @@ import org.bukkit.entity.Player;
  */
 public final class Gates {
 
+    // Don't start another loader thread for fewer gate files than this
+    private static final int GATE_FILES_PER_LOADER = 16;
+
     // Gate build blocks that are protected
     private static final GateMap protectionMap = new GateMap();
 
@@ -56,29 +70,64 @@ public final class Gates {
 
     // Indexed by full name
     private static final Map<String,GateImpl> gates = new HashMap<String,GateImpl>();
+    private static final Map<String,LocalGateImpl> localGates = new HashMap<String,LocalGateImpl>();
+    private static final Map<String,RemoteGateImpl> remoteGates = new HashMap<String,RemoteGateImpl>();
+
+    // Local gates indexed by world name
+    private static final Map<String,Set<LocalGateImpl>> worldGates = new HashMap<String,Set<LocalGateImpl>>();
+
+    // Full names indexed by lower case full name, for prefix lookups
+    private static final TreeMap<String,Set<String>> lowerNames = new TreeMap<String,Set<String>>();
+
+    // Local gates that link to, or are attached to, a gate, indexed by the other gate's full name
+    private static final Map<String,Set<LocalGateImpl>> referrers = new HashMap<String,Set<LocalGateImpl>>();
+
+    // The names each local gate is listed under in referrers
+    private static final Map<LocalGateImpl,Set<String>> references = new HashMap<LocalGateImpl,Set<String>>();
 
     private static Map<Integer,LocalGateImpl> selectedGates = new HashMap<Integer,LocalGateImpl>();
 
     public static void load(Context ctx) {
+        Persister.flush();
         clearLocalGates();
         for (World world : Global.plugin.getServer().getWorlds())
-            loadGatesForWorld(ctx, world);
+            loadGates(ctx, world);
+        publishLoadedGates();
     }
 
     public static int loadGatesForWorld(Context ctx, World world) {
+        Persister.flush();
+        int loadedCount = loadGates(ctx, world);
+        if (loadedCount > 0)
+            publishLoadedGates();
+        return loadedCount;
+    }
+
+    // Adds all the gates for a world without telling anyone else about them, see publishLoadedGates.
+    private static int loadGates(Context ctx, World world) {
         File worldFolder = Worlds.worldPluginFolder(world);
         File gatesFolder = new File(worldFolder, "gates");
         if (! gatesFolder.exists()) {
             Utils.info("no gates found for world '%s'", world.getName());
             return 0;
         }
+        File[] gateFiles = GateStore.listGateFiles(gatesFolder);
+        List<Future<LocalGateImpl>> parsedGates = parseGateFiles(world, gateFiles);
         int loadedCount = 0;
-        for (File gateFile : Utils.listYAMLFiles(gatesFolder)) {
+        for (int i = 0; i < gateFiles.length; i++) {
+            File gateFile = gateFiles[i];
             try {
-                LocalGateImpl gate = LocalGateImpl.load(world, gateFile);
+                LocalGateImpl gate;
+                try {
+                    gate = parsedGates.get(i).get();
+                } catch (ExecutionException ee) {
+                    throw ee.getCause();
+                }
                 if (gates.containsKey(gate.getFullName())) continue;
                 try {
-                    add(gate, false);
+                    addGate(gate);
+                    if (loadedCount == 0)
+                        checkWorld(gate);
                     ctx.sendLog("loaded gate '%s' for world '%s'", gate.getName(), world.getName());
                     loadedCount++;
                 } catch (GateException ge) {
@@ -93,10 +142,46 @@ public final class Gates {
         return loadedCount;
     }
 
+    // Reading and parsing gate files doesn't touch the world, so it's spread over a pool of threads.
+    // Adding the gates, which registers their volumes and updates their screens, happens back on the main thread.
+    private static List<Future<LocalGateImpl>> parseGateFiles(final World world, File[] gateFiles) {
+        List<Callable<LocalGateImpl>> tasks = new ArrayList<Callable<LocalGateImpl>>(gateFiles.length);
+        for (final File gateFile : gateFiles)
+            tasks.add(new Callable<LocalGateImpl>() {
+                public LocalGateImpl call() throws Exception {
+                    return LocalGateImpl.load(world, gateFile);
+                }
+            });
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), gateFiles.length / GATE_FILES_PER_LOADER));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Transporter gate loader " + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            return pool.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading gates");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // One marker update and one refresh for each server instead of one per gate.
+    private static void publishLoadedGates() {
+        Markers.update();
+        for (Server server : Servers.getAll())
+            server.sendRefreshData();
+    }
+
     public static void save(Context ctx) {
         Markers.update();
-        if (gates.isEmpty()) return;
-        Set<LocalGateImpl> lgates = getLocalGates();
+        if (localGates.isEmpty()) return;
+        Collection<LocalGateImpl> lgates = getLocalGates();
         for (LocalGateImpl gate : lgates) {
             gate.save(true);
             if ((ctx != null) && Config.getShowGatesSavedMessage())
@@ -120,11 +205,10 @@ public final class Gates {
         if (gates.containsKey(name)) return gates.get(name);
         String lname = name.toLowerCase();
         GateImpl gate = null;
-        for (String key : gates.keySet()) {
-            if (key.toLowerCase().startsWith(lname)) {
-                if (gate == null) gate = gates.get(key);
-                else return null;
-            }
+        for (Map.Entry<String,Set<String>> entry : lowerNames.tailMap(lname, true).entrySet()) {
+            if (! entry.getKey().startsWith(lname)) break;
+            if ((gate != null) || (entry.getValue().size() > 1)) return null;
+            gate = gates.get(entry.getValue().iterator().next());
         }
         return gate;
     }
@@ -134,50 +218,66 @@ public final class Gates {
     }
 
     public static void add(GateImpl gate, boolean created) throws GateException {
+        addGate(gate);
+        if (gate instanceof LocalGateImpl) {
+            LocalGateImpl lg = (LocalGateImpl)gate;
+            for (Server server : Servers.getAll())
+                server.sendGateAdded(lg);
+            Markers.update(lg.getFullName());
+            checkWorld(lg);
+        }
+    }
+
+    private static void addGate(GateImpl gate) throws GateException {
         if (gates.containsKey(gate.getFullName()))
             throw new GateException("a gate with the same name already exists here");
-        gates.put(gate.getFullName(), gate);
-        for (LocalGateImpl lg : getLocalGates())
+        index(gate);
+        if (gate instanceof LocalGateImpl)
+            ((LocalGateImpl)gate).onGateAdded(gate);
+        for (LocalGateImpl lg : getReferrers(gate.getFullName()))
             lg.onGateAdded(gate);
         if (gate instanceof LocalGateImpl) {
-            LocalGateImpl lg = (LocalGateImpl)gate;
-            LocalGateCreateEvent event = new LocalGateCreateEvent(lg);
+            LocalGateCreateEvent event = new LocalGateCreateEvent((LocalGateImpl)gate);
             Global.plugin.getServer().getPluginManager().callEvent(event);
-            for (Server server : Servers.getAll())
-                server.sendGateAdded(lg);
-            Markers.update();
-            World world = lg.getWorld();
-            if (Config.getAutoAddWorlds())
-                try {
-                    LocalWorldImpl wp = Worlds.add(world);
-                    if (wp != null)
-                        Utils.info("automatically added world '%s' for new gate '%s'", wp.getName(), gate.getName());
-                } catch (WorldException we) {}
-            else if (Worlds.get(world.getName()) == null)
-                Utils.warning("Gate '%s' has been added to world '%s' but the world has not been added to the plugin's list of worlds!", gate.getName(), world.getName());
         }
     }
 
+    private static void checkWorld(LocalGateImpl lg) {
+        World world = lg.getWorld();
+        if (Config.getAutoAddWorlds())
+            try {
+                LocalWorldImpl wp = Worlds.add(world);
+                if (wp != null)
+                    Utils.info("automatically added world '%s' for new gate '%s'", wp.getName(), lg.getName());
+            } catch (WorldException we) {}
+        else if (Worlds.get(world.getName()) == null)
+            Utils.warning("Gate '%s' has been added to world '%s' but the world has not been added to the plugin's list of worlds!", lg.getName(), world.getName());
+    }
+
     public static void remove(GateImpl gate) throws GateException {
         if (! gates.containsKey(gate.getFullName()))
             throw new GateException("gate not found");
-        for (LocalGateImpl lg : getLocalGates())
+        if (gate instanceof LocalGateImpl)
+            ((LocalGateImpl)gate).onGateRemoved(gate);
+        for (LocalGateImpl lg : getReferrers(gate.getFullName()))
             lg.onGateRemoved(gate);
-        gates.remove(gate.getFullName());
+        unindex(gate);
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             deselectGate(lg);
             lg.save(false);
             for (Server server : Servers.getAll())
                 server.sendGateRemoved(lg);
-            Markers.update();
+            Markers.update(lg.getFullName());
         }
     }
 
     public static void destroy(GateImpl gate, boolean unbuild) {
-        gates.remove(gate.getFullName());
-        for (LocalGateImpl lg : getLocalGates())
+        unindex(gate);
+        for (LocalGateImpl lg : getReferrers(gate.getFullName())) {
             lg.onGateDestroyed(gate);
+            updateReferences(lg);
+        }
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             deselectGate(lg);
@@ -186,7 +286,7 @@ public final class Gates {
             lg.destroy(unbuild);
             for (Server server : Servers.getAll())
                 server.sendGateDestroyed(lg);
-            Markers.update();
+            Markers.update(lg.getFullName());
         }
     }
 
@@ -203,21 +303,24 @@ public final class Gates {
     }
 
     public static void rename(GateImpl gate, String oldFullName) {
-        gates.remove(oldFullName);
-        gates.put(gate.getFullName(), gate);
-        for (LocalGateImpl lg : getLocalGates())
+        unindexName(gate, oldFullName);
+        indexName(gate);
+        for (LocalGateImpl lg : getReferrers(oldFullName)) {
             lg.onGateRenamed(gate, oldFullName);
+            updateReferences(lg);
+        }
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             lg.onRenameComplete();
             for (Server server : Servers.getAll())
                 server.sendGateRenamed(oldFullName, gate.getName());
-            Markers.update();
+            Markers.update(oldFullName);
+            Markers.update(lg.getFullName());
         }
     }
 
     public static void removeGatesForWorld(World world) {
-        for (LocalGateImpl lg : getLocalGates()) {
+        for (LocalGateImpl lg : new ArrayList<LocalGateImpl>(getLocalGates(world))) {
             if (lg.getWorld() == world)
                 try {
                     remove(lg);
@@ -226,7 +329,7 @@ public final class Gates {
     }
 
     public static void removeGatesForServer(Server server) {
-        for (RemoteGateImpl rg : getRemoteGates())
+        for (RemoteGateImpl rg : new ArrayList<RemoteGateImpl>(getRemoteGates()))
             if (rg.getRemoteServer() == server)
                 try {
                     remove(rg);
@@ -234,23 +337,126 @@ public final class Gates {
     }
 
     public static LocalGateImpl getLocalGate(String name) {
-        GateImpl gate = gates.get(name);
-        if ((gate == null) || (! (gate instanceof LocalGateImpl))) return null;
-        return (LocalGateImpl)gate;
+        return localGates.get(name);
     }
 
-    public static Set<LocalGateImpl> getLocalGates() {
-        Set<LocalGateImpl> gs = new HashSet<LocalGateImpl>();
-        for (GateImpl gate : gates.values())
-            if (gate instanceof LocalGateImpl) gs.add((LocalGateImpl)gate);
-        return gs;
+    // These return live, read-only views, so copy them before adding or removing gates while iterating.
+
+    public static Collection<LocalGateImpl> getLocalGates() {
+        return Collections.unmodifiableCollection(localGates.values());
     }
 
-    public static Set<RemoteGateImpl> getRemoteGates() {
-        Set<RemoteGateImpl> gs = new HashSet<RemoteGateImpl>();
-        for (GateImpl gate : gates.values())
-            if (gate instanceof RemoteGateImpl) gs.add((RemoteGateImpl)gate);
-        return gs;
+    public static Collection<LocalGateImpl> getLocalGates(World world) {
+        Set<LocalGateImpl> gs = worldGates.get(world.getName());
+        if (gs == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(gs);
+    }
+
+    public static Collection<RemoteGateImpl> getRemoteGates() {
+        return Collections.unmodifiableCollection(remoteGates.values());
+    }
+
+    // Must be called whenever a local gate's links, outgoing link, or incoming gates change.
+    public static void updateReferences(LocalGateImpl lg) {
+        if (localGates.get(lg.getFullName()) != lg) return;
+        Set<String> names = lg.getReferencedGateNames();
+        Set<String> oldNames = references.put(lg, names);
+        if (oldNames != null)
+            for (String name : oldNames)
+                if (! names.contains(name))
+                    removeReferrer(name, lg);
+        for (String name : names)
+            if ((oldNames == null) || (! oldNames.contains(name))) {
+                Set<LocalGateImpl> lgs = referrers.get(name);
+                if (lgs == null) {
+                    lgs = new HashSet<LocalGateImpl>();
+                    referrers.put(name, lgs);
+                }
+                lgs.add(lg);
+            }
+    }
+
+    // Must be called whenever a local gate opens, closes, moves, or changes its chat options.
+    public static void updateChat(LocalGateImpl lg) {
+        if (localGates.get(lg.getFullName()) != lg) return;
+        ChatIndex.update(lg);
+    }
+
+    // Returns a copy since notified gates often change their references.
+    private static List<LocalGateImpl> getReferrers(String fullName) {
+        Set<LocalGateImpl> lgs = referrers.get(fullName);
+        if (lgs == null) return Collections.emptyList();
+        return new ArrayList<LocalGateImpl>(lgs);
+    }
+
+    private static void removeReferrer(String name, LocalGateImpl lg) {
+        Set<LocalGateImpl> lgs = referrers.get(name);
+        if (lgs == null) return;
+        lgs.remove(lg);
+        if (lgs.isEmpty()) referrers.remove(name);
+    }
+
+    private static void index(GateImpl gate) {
+        indexName(gate);
+        if (gate instanceof LocalGateImpl) {
+            LocalGateImpl lg = (LocalGateImpl)gate;
+            String worldName = lg.getWorld().getName();
+            Set<LocalGateImpl> gs = worldGates.get(worldName);
+            if (gs == null) {
+                gs = new HashSet<LocalGateImpl>();
+                worldGates.put(worldName, gs);
+            }
+            gs.add(lg);
+            updateReferences(lg);
+            ChatIndex.update(lg);
+        }
+    }
+
+    private static void unindex(GateImpl gate) {
+        if (gate instanceof LocalGateImpl) {
+            LocalGateImpl lg = (LocalGateImpl)gate;
+            Set<String> names = references.remove(lg);
+            if (names != null)
+                for (String name : names)
+                    removeReferrer(name, lg);
+            String worldName = lg.getWorld().getName();
+            Set<LocalGateImpl> gs = worldGates.get(worldName);
+            if (gs != null) {
+                gs.remove(lg);
+                if (gs.isEmpty()) worldGates.remove(worldName);
+            }
+            ChatIndex.remove(lg);
+        }
+        unindexName(gate, gate.getFullName());
+    }
+
+    private static void indexName(GateImpl gate) {
+        String fullName = gate.getFullName();
+        gates.put(fullName, gate);
+        if (gate instanceof LocalGateImpl)
+            localGates.put(fullName, (LocalGateImpl)gate);
+        else if (gate instanceof RemoteGateImpl)
+            remoteGates.put(fullName, (RemoteGateImpl)gate);
+        String lname = fullName.toLowerCase();
+        Set<String> names = lowerNames.get(lname);
+        if (names == null) {
+            names = new HashSet<String>(1);
+            lowerNames.put(lname, names);
+        }
+        names.add(fullName);
+    }
+
+    private static void unindexName(GateImpl gate, String fullName) {
+        if (gates.get(fullName) != gate) return;
+        gates.remove(fullName);
+        localGates.remove(fullName);
+        remoteGates.remove(fullName);
+        String lname = fullName.toLowerCase();
+        Set<String> names = lowerNames.get(lname);
+        if (names != null) {
+            names.remove(fullName);
+            if (names.isEmpty()) lowerNames.remove(lname);
+        }
     }
 
 
@@ -267,6 +473,15 @@ public final class Gates {
         portalMap.removeGate(gate);
     }
 
+    public static boolean hasPortalChunk(World world, int cx, int cz) {
+        return portalMap.hasChunk(world, cx, cz);
+    }
+
+    // Changes whenever a portal volume is added or removed.
+    public static int getPortalVersion() {
+        return portalMap.getVersion();
+    }
+
     public static LocalGateImpl findGateForProtection(Location loc) {
         return protectionMap.getGate(loc);
     }
@@ -343,9 +558,8 @@ public final class Gates {
     }
 
     private static void clearLocalGates() {
-        for (GateImpl gate : new HashSet<GateImpl>(gates.values()))
-            if (gate instanceof GateImpl)
-                gates.remove(gate.getFullName());
+        for (GateImpl gate : new ArrayList<GateImpl>(gates.values()))
+            unindex(gate);
     }
 
 }
@@ -68,6 +68,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     private Material boxMaterial;
 
     private List<SavedBlock> boxBlocks = null;
+    private SpawnCells spawnCells = null;
 
 
     // creation from file
@@ -156,76 +157,28 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     @Override
     public Location getSpawnLocation(Location fromLocation, BlockFace fromDirection) {
         Random random = new Random();
-        Bounds bounds = new Bounds(p1, p2);
-        for (int tries = 0; tries < 1000; tries++) {
-            // find location of feet
-            int x = bounds.min.x + ((bounds.sizeX() > 0) ? random.nextInt(bounds.sizeX()) : 0);
-            int y = bounds.min.y + ((bounds.sizeY() > 0) ? random.nextInt(bounds.sizeY()) : 0);
-            int z = bounds.min.z + ((bounds.sizeZ() > 0) ? random.nextInt(bounds.sizeZ()) : 0);
-            // adjust down to make room for head
-            if (y > bounds.max.y) y--;
-            else if (y < bounds.min.y) y++;
-
-            SpawnSearch dir = spawnSearch;
-            if (dir == SpawnSearch.DOWNUP) dir = SpawnSearch.DOWN;
-            else if (dir == SpawnSearch.UPDOWN) dir = SpawnSearch.UP;
-            boolean goodLocation = false;
-            boolean endLoop = false;
-
-            while (! endLoop) {
-                // can the location hold the player?
-                Material footBlock = world.getBlockAt(x, y, z).getType();
-                Material headBlock = world.getBlockAt(x, y + 1, z).getType();
-
-                if ((footBlock == Material.AIR) && (headBlock == Material.AIR))
-                    goodLocation = true;
-                else if (spawnSolid && (isSolid(footBlock) || isSolid(headBlock)))
-                    goodLocation = true;
-                else if (spawnLiquid &&
-                        (
-                            (isLiquid(footBlock) && (! isSolid(headBlock))) ||
-                            (isLiquid(headBlock) && (! isSolid(footBlock)))
-                        ))
-                    goodLocation = true;
-
-                // check for air block under player
-                if (goodLocation && (! spawnAir)) {
-                    if ((y == 0) || (world.getBlockAt(x, y - 1, z).getType() == Material.AIR))
-                        goodLocation = false;
-                }
-
-                if (goodLocation)
-                    endLoop = true;
-                else {
-                    switch (dir) {
-                        case UP:
-                            y++;
-                            if (y > bounds.max.y) {
-                                if (spawnSearch == SpawnSearch.UPDOWN) {
-                                    dir = SpawnSearch.DOWN;
-                                    y = y - 2;
-                                } else
-                                    endLoop = true;
-                            }
-                            break;
-                        case DOWN:
-                            y--;
-                            if (y < bounds.min.y) {
-                                if (spawnSearch == SpawnSearch.DOWNUP) {
-                                    dir = SpawnSearch.UP;
-                                    y = y + 2;
-                                } else
-                                    endLoop = true;
-                            }
-                    }
-                }
+        boolean fresh = false;
+        while (true) {
+            if (spawnCells == null) {
+                spawnCells = new SpawnCells(world, new Bounds(p1, p2), spawnAir, spawnSolid, spawnLiquid, spawnSearch);
+                fresh = true;
             }
-            if (goodLocation) {
-                Location toLocation = new Location(world, (double)x + 0.5, y, (double)z + 0.5);
+            for (int tries = 0; tries < 10; tries++) {
+                int[] cell = spawnCells.pick(random);
+                if (cell == null) break;
+                if (! spawnCells.isValid(cell)) {
+                    // something changed since the column was scanned
+                    spawnCells.rescan(cell);
+                    continue;
+                }
+                Location toLocation = new Location(world, (double)cell[0] + 0.5, cell[1], (double)cell[2] + 0.5);
                 toLocation.setYaw(spawnDirection.calculateYaw(fromLocation.getYaw(), fromDirection, getDirection()));
                 toLocation.setPitch(fromLocation.getPitch());
                 return toLocation;
             }
+            if (fresh) break;
+            // too much has changed, so scan the whole area again
+            spawnCells = null;
         }
         Utils.warning("Unable to find a suitable spawnlocation for gate '%s'!", getLocalName());
         return p1;
@@ -348,6 +301,9 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     private void setCorners(Location l1, Location l2) {
         p1 = l1;
         p2 = l2;
+        spawnCells = null;
+        calculateCenter();
+        Gates.updateChat(this);
         if (box) showBox();
         if (portalOpen) {
             Gates.removePortalVolume(this);
@@ -392,24 +348,12 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
         return vol;
     }
 
-    private boolean isSolid(Material m) {
-        return (! isLiquid(m)) &&
-               (m != Material.AIR) &&
-               (m != Material.WEB);
-    }
-
-    private boolean isLiquid(Material m) {
-        return (m == Material.WATER) ||
-               (m == Material.STATIONARY_WATER) ||
-               (m == Material.LAVA) ||
-               (m == Material.STATIONARY_LAVA);
-    }
-
     private void hideBox() {
         if (boxBlocks == null) return;
         for (SavedBlock b : boxBlocks)
             b.restore();
         boxBlocks = null;
+        spawnCells = null;
     }
 
     private void showBox() {
@@ -434,22 +378,19 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
                 }
             }
         }
+        spawnCells = null;
     }
 
     private Volume getBoxVolume() {
         Volume vol = new Volume(this);
         Bounds bounds = new Bounds(p1, p2);
-        Point p = bounds.min.clone();
         for (int x = bounds.min.x; x <= bounds.max.x; x++) {
-            p.x = x;
             for (int y = bounds.min.y; y <= bounds.max.y; y++) {
-                p.y = y;
                 for (int z = bounds.min.z; z <= bounds.max.z; z++) {
-                    p.z = z;
                     if ((x == bounds.min.x) || (x == bounds.max.x) ||
                         (y == bounds.min.y) || (y == bounds.max.y) ||
                         (z == bounds.min.z) || (z == bounds.max.z)) {
-                        vol.addPoint(p.clone());
+                        vol.addPoint(x, y, z);
                     }
                 }
             }
@@ -510,6 +451,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
 
     public void setSpawnAir(boolean b) {
         spawnAir = b;
+        spawnCells = null;
         dirty = true;
     }
 
@@ -519,6 +461,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
 
     public void setSpawnSolid(boolean b) {
         spawnSolid = b;
+        spawnCells = null;
         dirty = true;
     }
 
@@ -528,6 +471,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
 
     public void setSpawnLiquid(boolean b) {
         spawnLiquid = b;
+        spawnCells = null;
         dirty = true;
     }
 
@@ -537,6 +481,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
 
     public void setSpawnSearch(SpawnSearch s) {
         spawnSearch = s;
+        spawnCells = null;
         dirty = true;
     }
 
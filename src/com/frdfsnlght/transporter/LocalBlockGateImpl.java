@@ -16,7 +16,6 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.TypeMap;
-import com.frdfsnlght.transporter.GateMap.Point;
 import com.frdfsnlght.transporter.GateMap.Volume;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.GateType;
@@ -370,7 +369,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         Volume vol = new Volume(this);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isBuildable()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location l = gb.getLocation();
+            vol.addPoint(l.getBlockX(), l.getBlockY(), l.getBlockZ());
         }
         return vol;
     }
@@ -379,7 +379,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         Volume vol = new Volume(this);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isScreen()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location l = gb.getLocation();
+            vol.addPoint(l.getBlockX(), l.getBlockY(), l.getBlockZ());
         }
         return vol;
     }
@@ -388,7 +389,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         Volume vol = new Volume(this);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isTrigger()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location l = gb.getLocation();
+            vol.addPoint(l.getBlockX(), l.getBlockY(), l.getBlockZ());
         }
         return vol;
     }
@@ -397,7 +399,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         Volume vol = new Volume(this);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isSwitch()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location l = gb.getLocation();
+            vol.addPoint(l.getBlockX(), l.getBlockY(), l.getBlockZ());
         }
         return vol;
     }
@@ -406,7 +409,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         Volume vol = new Volume(this);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isPortal()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location l = gb.getLocation();
+            vol.addPoint(l.getBlockX(), l.getBlockY(), l.getBlockZ());
         }
         return vol;
     }
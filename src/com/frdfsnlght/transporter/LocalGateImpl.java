@@ -49,14 +49,20 @@ import org.bukkit.util.Vector;
 public abstract class LocalGateImpl extends GateImpl implements LocalGate, OptionsListener {
 
     public static LocalGateImpl load(World world, File file) throws GateException {
-        if (! file.exists())
-            throw new GateException("%s not found", file.getAbsolutePath());
-        if (! file.isFile())
-            throw new GateException("%s is not a file", file.getAbsolutePath());
-        if (! file.canRead())
-            throw new GateException("unable to read %s", file.getAbsoluteFile());
-        TypeMap conf = new TypeMap(file);
-        conf.load();
+        TypeMap conf;
+        if (GateStore.handles(file))
+            conf = GateStore.read(file);
+        else {
+            if (! file.exists())
+                throw new GateException("%s not found", file.getAbsolutePath());
+            if (! file.isFile())
+                throw new GateException("%s is not a file", file.getAbsolutePath());
+            if (! file.canRead())
+                throw new GateException("unable to read %s", file.getAbsoluteFile());
+            conf = new TypeMap(file);
+            conf.load();
+            Persister.loaded(file);
+        }
         String typeStr = conf.getString("type", "BLOCK");
         GateType type;
         try {
@@ -167,6 +173,10 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     protected int sendChatDistance;
     protected boolean receiveChat;
     protected String receiveChatFilter;
+    // compiled filters, null when the filter is unset or invalid
+    protected Pattern sendChatPattern;
+    protected Pattern sendChatFormatPattern;
+    protected Pattern receiveChatPattern;
     protected int receiveChatDistance;
     protected boolean requireAllowedItems;
     protected boolean receiveInventory;
@@ -219,6 +229,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     protected boolean dirty = false;
     protected boolean portalOpen = false;
     protected long portalOpenTime = 0;
+    private Timers.Timer closeTimer = null;
     protected Options options = new Options(this, BASEOPTIONS, "trp.gate", this);
 
     protected LocalGateImpl(World world, TypeMap conf) throws GateException {
@@ -344,6 +355,9 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         receiveChat = conf.getBoolean("receiveChat", false);
         receiveChatFilter = conf.getString("receiveChatFilter");
         receiveChatDistance = conf.getInt("receiveChatDistance", 1000);
+        sendChatPattern = compileFilter(sendChatFilter, "sendChatFilter");
+        sendChatFormatPattern = compileFilter(sendChatFormatFilter, "sendChatFormatFilter");
+        receiveChatPattern = compileFilter(receiveChatFilter, "receiveChatFilter");
         requireAllowedItems = conf.getBoolean("requireAllowedItems", true);
         receiveInventory = conf.getBoolean("receiveInventory", true);
         deleteInventory = conf.getBoolean("deleteInventory", false);
@@ -507,6 +521,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
             if (incoming.contains(originName)) return;
             incoming.add(originName);
             dirty = true;
+            Gates.updateReferences(this);
         }
 
         // 2 new
@@ -530,15 +545,8 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         }
 
         // new
-        if (duration > 0) {
-            final LocalGateImpl myself = this;
-            Utils.fireDelayed(new Runnable() {
-                
-                public void run() {
-                    myself.closeIfAllowed();
-                }
-            }, duration + 100);
-        }
+        if (duration > 0)
+            scheduleClose();
     }
 
     
@@ -548,13 +556,14 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
         incoming.remove(originName);
         dirty = true;
+        Gates.updateReferences(this);
         closeIfAllowed();
     }
 
     // End interfaces and implementations
 
     public void onRenameComplete() {
-        file.delete();
+        Persister.delete(file);
         generateFile();
         save(true);
         onNameChanged();
@@ -621,7 +630,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
     public void destroy(boolean unbuild) {
         close();
-        if (! file.delete())
+        if (! Persister.delete(file))
             Utils.warning("unable to delete gate file %s", file.getAbsolutePath());
         else
             Utils.info("deleted gate file %s", file.getAbsolutePath());
@@ -661,6 +670,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
         portalOpen = true;
         portalOpenTime = System.currentTimeMillis();
+        Gates.updateChat(this);
         gate.attach(this);
         onOpen();
         onDestinationChanged();
@@ -668,23 +678,22 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         LocalGateOpenedEvent event = new LocalGateOpenedEvent(this);
         Global.plugin.getServer().getPluginManager().callEvent(event);
 
-        if (duration > 0) {
-            final LocalGateImpl myself = this;
-            Utils.fireDelayed(new Runnable() {
-                
-                public void run() {
-                    myself.closeIfAllowed();
-                }
-            }, duration + 100);
-        }
+        if (duration > 0)
+            scheduleClose();
     }
 
     public void close() {
         if (! portalOpen) return;
         portalOpen = false;
+        if (closeTimer != null) {
+            closeTimer.cancel();
+            closeTimer = null;
+        }
 
         ReservationImpl.removeCountdowns(this);
         incoming.clear();
+        Gates.updateReferences(this);
+        Gates.updateChat(this);
         onClose();
         onDestinationChanged();
 
@@ -724,7 +733,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         conf.set("linkServerFormat", linkServerFormat);
 
         conf.set("multiLink", multiLink);
-        conf.set("links", links);
+        conf.set("links", new ArrayList<String>(links));
         conf.set("pins", new ArrayList<String>(pins));
         conf.set("bannedItems", new ArrayList<String>(bannedItems));
         conf.set("allowedItems", new ArrayList<String>(allowedItems));
@@ -746,7 +755,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         conf.set("deleteInventory", deleteInventory);
         conf.set("receiveGameMode", receiveGameMode);
         conf.set("allowGameModes", allowGameModes);
-        conf.set("gameMode", gameMode);
+        conf.set("gameMode", (gameMode == null) ? null : gameMode.toString());
         conf.set("receiveXP", receiveXP);
         conf.set("receivePotions", receivePotions);
         conf.set("requireAllowedPotions", requireAllowedPotions);
@@ -787,10 +796,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
         onSave(conf);
 
-        File parent = file.getParentFile();
-        if (! parent.exists())
-            parent.mkdirs();
-        conf.save();
+        Persister.save(file, conf);
     }
 
     protected void validate() throws GateException {
@@ -1042,6 +1048,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setSendChat(boolean b) {
         sendChat = b;
         dirty = true;
+        Gates.updateChat(this);
     }
 
     
@@ -1051,16 +1058,18 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
     
     public void setSendChatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         sendChatFilter = s;
+        sendChatPattern = p;
     }
 
     
@@ -1070,16 +1079,18 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
     
     public void setSendChatFormatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         sendChatFormatFilter = s;
+        sendChatFormatPattern = p;
     }
 
     
@@ -1091,6 +1102,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setSendChatDistance(int i) {
         sendChatDistance = i;
         dirty = true;
+        Gates.updateChat(this);
     }
 
     
@@ -1102,6 +1114,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setReceiveChat(boolean b) {
         receiveChat = b;
         dirty = true;
+        Gates.updateChat(this);
     }
 
     
@@ -1111,16 +1124,18 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
     
     public void setReceiveChatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         receiveChatFilter = s;
+        receiveChatPattern = p;
     }
 
     
@@ -1132,6 +1147,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setReceiveChatDistance(int i) {
         receiveChatDistance = i;
         dirty = true;
+        Gates.updateChat(this);
     }
 
     
@@ -1624,10 +1640,10 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public boolean canSendChat(String message, String format) {
         if ((! sendChat) || (message == null)) return false;
         if (sendChatFilter != null)
-            if (! Pattern.compile(sendChatFilter).matcher(message).find()) return false;
+            if ((sendChatPattern == null) || (! sendChatPattern.matcher(message).find())) return false;
         if (sendChatFormatFilter != null) {
             if (format == null) return false;
-            if (! Pattern.compile(sendChatFormatFilter).matcher(format).find()) return false;
+            if ((sendChatFormatPattern == null) || (! sendChatFormatPattern.matcher(format).find())) return false;
         }
         return true;
     }
@@ -1635,7 +1651,19 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public boolean canReceiveChat(String message) {
         if ((! receiveChat) || (message == null)) return false;
         if (receiveChatFilter == null) return true;
-        return Pattern.compile(receiveChatFilter).matcher(message).find();
+        if (receiveChatPattern == null) return false;
+        return receiveChatPattern.matcher(message).find();
+    }
+
+    // Compiles a filter read from the gate's file. Invalid filters match nothing.
+    private Pattern compileFilter(String s, String option) {
+        if (s == null) return null;
+        try {
+            return Patterns.compile(s);
+        } catch (PatternSyntaxException e) {
+            Utils.warning("gate '%s' has an invalid %s: %s", name, option, e.getMessage());
+            return null;
+        }
     }
 
 
@@ -1730,6 +1758,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         links.add(link);
         if (links.size() == 1)
             outgoing = link;
+        Gates.updateReferences(this);
         onDestinationChanged();
         dirty = true;
         return true;
@@ -1752,6 +1781,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         links.remove(link);
         if (link.equals(outgoing))
             outgoing = null;
+        Gates.updateReferences(this);
         onDestinationChanged();
         closeIfAllowed();
         dirty = true;
@@ -2136,20 +2166,34 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         return filtered;
     }
 
+    // Returns the full names of the gates this gate links to or is attached to.
+    Set<String> getReferencedGateNames() {
+        Set<String> names = new HashSet<String>(links);
+        names.addAll(incoming);
+        if (outgoing != null) names.add(outgoing);
+        return names;
+    }
+
     public boolean isInChatSendProximity(Location location) {
         if (! sendChat) return false;
         if (location.getWorld() != world) return false;
         if (sendChatDistance <= 0) return true;
-        Vector there = new Vector(location.getX(), location.getY(), location.getZ());
-        return (there.distance(center) <= sendChatDistance);
+        return isWithin(location, sendChatDistance);
     }
 
     public boolean isInChatReceiveProximity(Location location) {
         if (! receiveChat) return false;
         if (location.getWorld() != world) return false;
         if (receiveChatDistance <= 0) return true;
-        Vector there = new Vector(location.getX(), location.getY(), location.getZ());
-        return (there.distance(center) <= receiveChatDistance);
+        return isWithin(location, receiveChatDistance);
+    }
+
+    // compares squared distances to avoid the square root
+    private boolean isWithin(Location location, int distance) {
+        double dx = location.getX() - center.getX();
+        double dy = location.getY() - center.getY();
+        double dz = location.getZ() - center.getZ();
+        return ((dx * dx) + (dy * dy) + (dz * dz)) <= ((double)distance * (double)distance);
     }
 
     protected void generateFile() {
@@ -2162,6 +2206,18 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         file = new File(gatesFolder, fileName);
     }
 
+    // Replaces any earlier close check since the open time has moved.
+    private void scheduleClose() {
+        if (closeTimer != null)
+            closeTimer.cancel();
+        closeTimer = Timers.schedule("gate close", new Runnable() {
+            public void run() {
+                closeTimer = null;
+                closeIfAllowed();
+            }
+        }, duration + 100);
+    }
+
     private void closeIfAllowed() {
         if (! portalOpen) return;
         if (canClose()) close();
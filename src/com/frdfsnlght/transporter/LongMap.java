@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open addressing hash map keyed by primitive longs.
+ *
+ * Lookups don't box the key or allocate. Null values aren't allowed
+ * since a null value marks an empty slot.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LongMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+    private int mask;
+    private int resizeAt;
+
+    public LongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) return (V)v;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V)v;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt)
+            allocate(values.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftDown(i);
+                size--;
+                return (V)v;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        for (int i = 0; i < values.length; i++)
+            values[i] = null;
+        size = 0;
+    }
+
+    public long[] keys() {
+        long[] out = new long[size];
+        int j = 0;
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null) out[j++] = keys[i];
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> out = new ArrayList<V>(size);
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null) out.add((V)values[i]);
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "LongMap[" + size + "]";
+    }
+
+    // Removes the entry at the given slot and closes the gap so linear probing still finds later entries.
+    private void shiftDown(int free) {
+        values[free] = null;
+        int i = free;
+        for (;;) {
+            i = (i + 1) & mask;
+            if (values[i] == null) return;
+            int home = slot(keys[i]);
+            boolean stays = (free <= i) ?
+                    ((free < home) && (home <= i)) :
+                    ((free < home) || (home <= i));
+            if (stays) continue;
+            keys[free] = keys[i];
+            values[free] = values[i];
+            values[i] = null;
+            free = i;
+        }
+    }
+
+    private int slot(long key) {
+        return mix(key) & mask;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (capacity * 3) / 4;
+        if (oldValues == null) return;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int j = slot(oldKeys[i]);
+            while (values[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while ((capacity * 3) / 4 < expectedSize)
+            capacity <<= 1;
+        return capacity;
+    }
+
+}
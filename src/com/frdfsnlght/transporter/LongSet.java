@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+/**
+ * An open addressing hash set of primitive longs.
+ *
+ * Zero marks an empty slot, so membership of zero itself is tracked
+ * with a separate flag.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LongSet {
+
+    private long[] keys;
+    private boolean hasZero = false;
+    private int size = 0;
+    private int mask;
+    private int resizeAt;
+
+    public LongSet() {
+        this(0);
+    }
+
+    public LongSet(int expectedSize) {
+        allocate(LongMap.capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return hasZero;
+        int i = LongMap.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean add(long key) {
+        if (key == 0) {
+            if (hasZero) return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = LongMap.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        if (++size > resizeAt)
+            allocate(keys.length << 1);
+        return true;
+    }
+
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (! hasZero) return false;
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int i = LongMap.mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) {
+                shiftDown(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = 0;
+        hasZero = false;
+        size = 0;
+    }
+
+    public long[] toArray() {
+        long[] out = new long[size];
+        int j = 0;
+        if (hasZero) out[j++] = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != 0) out[j++] = keys[i];
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "LongSet[" + size + "]";
+    }
+
+    private void shiftDown(int free) {
+        keys[free] = 0;
+        int i = free;
+        for (;;) {
+            i = (i + 1) & mask;
+            long k = keys[i];
+            if (k == 0) return;
+            int home = LongMap.mix(k) & mask;
+            boolean stays = (free <= i) ?
+                    ((free < home) && (home <= i)) :
+                    ((free < home) || (home <= i));
+            if (stays) continue;
+            keys[free] = k;
+            keys[i] = 0;
+            free = i;
+        }
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (capacity * 3) / 4;
+        if (oldKeys == null) return;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k == 0) continue;
+            int j = LongMap.mix(k) & mask;
+            while (keys[j] != 0)
+                j = (j + 1) & mask;
+            keys[j] = k;
+        }
+    }
+
+}
@@ -17,10 +17,14 @@ package com.frdfsnlght.transporter;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.util.Vector;
 import org.dynmap.DynmapAPI;
@@ -30,6 +34,15 @@ import org.dynmap.markers.MarkerIcon;
 import org.dynmap.markers.MarkerSet;
 
 /**
+ * Publishes local gates to dynmap and the exported gates file.
+ * <p>
+ * Changed gates are collected for a short while and published together,
+ * so mass changes like loading a world only publish once. Only the dynmap
+ * markers of changed gates are touched. The exported file is rebuilt from
+ * each gate's cached JSON and written by a worker thread to a temporary
+ * file, which is then renamed over the old one. Must be called on the
+ * main thread.
+ * </p>
  *
  * @author Thomas A. Bennedum <tab@bennedum.org>
  */
@@ -38,8 +51,25 @@ public final class Markers {
     private static final String DYNMAP_MARKERSET_ID = "transporter-markers";
     private static final String DYNMAP_MARKERICON_ID = "transporter-marker";
 
+    // millis to collect changes before publishing them
+    private static final int PUBLISH_DELAY = 1000;
+
     private static DynmapAPI dynmapPlugin = null;
 
+    private static final Set<String> dirtyGates = new HashSet<String>();
+    private static boolean allDirty = false;
+    private static boolean scheduled = false;
+    private static boolean published = false;
+
+    // JSON for each exported gate, by full name
+    private static final Map<String,String> gateJSON = new TreeMap<String,String>();
+
+    // guards the export below
+    private static final Object exportLock = new Object();
+    private static File exportFile = null;
+    private static List<String> exportParts = null;
+    private static boolean exporting = false;
+
     public static boolean dynmapAvailable() {
         if (! Config.getUseDynmap()) return false;
         if (dynmapPlugin != null) return true;
@@ -49,74 +79,182 @@ public final class Markers {
         return true;
     }
 
+    // Publishes every gate.
     public static void update() {
-        exportJSON();
+        allDirty = true;
+        dirtyGates.clear();
+        schedule();
+    }
+
+    // Publishes a gate, which may have been removed or renamed.
+    public static void update(String fullName) {
+        if (! allDirty)
+            dirtyGates.add(fullName);
+        schedule();
+    }
 
-        if (dynmapAvailable()) {
-            MarkerAPI api = dynmapPlugin.getMarkerAPI();
-            MarkerIcon markerIcon = api.getMarkerIcon(DYNMAP_MARKERICON_ID);
-            if (markerIcon == null) {
-                markerIcon = api.createMarkerIcon(DYNMAP_MARKERICON_ID, DYNMAP_MARKERICON_ID, Markers.class.getResourceAsStream("/resources/images/transporter-tiny.png"));
-                if (markerIcon != null)
-                    Utils.debug("dynmap marker icon created");
+    // Waits for the exported file to be written.
+    public static void flush() {
+        synchronized (exportLock) {
+            while (exporting) {
+                try {
+                    exportLock.wait();
+                } catch (InterruptedException ie) {}
             }
-            MarkerSet markerSet = api.getMarkerSet(DYNMAP_MARKERSET_ID);
-            if (markerSet == null) {
-                markerSet = api.createMarkerSet(DYNMAP_MARKERSET_ID, Config.getDynmapMarkerSetLabel(), null, false);
-                if (markerSet != null)
-                    Utils.debug("dynmap marker set created");
+        }
+    }
+
+    private static void schedule() {
+        // the scheduler won't run anything while we're disabling
+        if (! Global.enabled) {
+            publish();
+            return;
+        }
+        if (scheduled) return;
+        scheduled = true;
+        Utils.fireDelayed(new Runnable() {
+            public void run() {
+                publish();
             }
+        }, PUBLISH_DELAY);
+    }
+
+    private static void publish() {
+        scheduled = false;
+        boolean all = allDirty || (! published);
+        Set<String> names = new HashSet<String>(dirtyGates);
+        allDirty = false;
+        dirtyGates.clear();
+        if ((! all) && names.isEmpty()) return;
+        published = true;
+
+        if (all) {
+            gateJSON.clear();
+            for (LocalGateImpl gate : Gates.getLocalGates())
+                encodeGate(gate);
+        } else
+            for (String name : names) {
+                gateJSON.remove(name);
+                GateImpl gate = Gates.get(name);
+                if (gate instanceof LocalGateImpl)
+                    encodeGate((LocalGateImpl)gate);
+            }
+        exportJSON();
+
+        if (dynmapAvailable())
+            updateDynmap(all, names);
+    }
+
+    private static void updateDynmap(boolean all, Set<String> names) {
+        MarkerAPI api = dynmapPlugin.getMarkerAPI();
+        MarkerIcon markerIcon = api.getMarkerIcon(DYNMAP_MARKERICON_ID);
+        if (markerIcon == null) {
+            markerIcon = api.createMarkerIcon(DYNMAP_MARKERICON_ID, DYNMAP_MARKERICON_ID, Markers.class.getResourceAsStream("/resources/images/transporter-tiny.png"));
+            if (markerIcon != null)
+                Utils.debug("dynmap marker icon created");
+        }
+        MarkerSet markerSet = api.getMarkerSet(DYNMAP_MARKERSET_ID);
+        if (markerSet == null) {
+            markerSet = api.createMarkerSet(DYNMAP_MARKERSET_ID, Config.getDynmapMarkerSetLabel(), null, false);
+            if (markerSet != null)
+                Utils.debug("dynmap marker set created");
+        }
+        if (markerSet == null) return;
+
+        if (all) {
             Map<String,Marker> currentMarkers = new HashMap<String,Marker>();
             for (Marker marker : markerSet.getMarkers())
                 currentMarkers.put(marker.getMarkerID(), marker);
+            for (LocalGateImpl gate : Gates.getLocalGates())
+                updateMarker(markerSet, markerIcon, gate, currentMarkers.remove(gate.getFullName()));
+            for (Marker marker : currentMarkers.values())
+                deleteMarker(marker);
+        } else
+            for (String name : names) {
+                Marker marker = markerSet.findMarker(name);
+                GateImpl gate = Gates.get(name);
+                if (gate instanceof LocalGateImpl)
+                    updateMarker(markerSet, markerIcon, (LocalGateImpl)gate, marker);
+                else if (marker != null)
+                    deleteMarker(marker);
+            }
+    }
 
-            // gates
-            for (Iterator<LocalGateImpl> i = Gates.getLocalGates().iterator(); i.hasNext();) {
-                LocalGateImpl gate = i.next();
-                Vector center = gate.getCenter();
-                if (center == null) continue;
-                Marker marker = currentMarkers.remove(gate.getFullName());
-
-                String format = gate.getMarkerFormat();
-                if (format == null) {
-                    if (marker != null)
-                        marker.deleteMarker();
-                    continue;
-                }
+    private static void updateMarker(MarkerSet markerSet, MarkerIcon markerIcon, LocalGateImpl gate, Marker marker) {
+        Vector center = gate.getCenter();
+        String format = gate.getMarkerFormat();
+        if ((center == null) || (format == null)) {
+            if (marker != null)
+                deleteMarker(marker);
+            return;
+        }
 
-                format = format.replace("\\n", "\n");
-                format = format.replace("%name%", gate.getName());
-                format = format.replace("%type%", gate.getType().toString());
-                format = format.replace("%creator%", gate.getCreatorName());
-                format = format.replace("%sendLocal%", Economy.format(gate.getSendLocalCost()));
-                format = format.replace("%sendWorld%", Economy.format(gate.getSendWorldCost()));
-                format = format.replace("%sendServer%", Economy.format(gate.getSendServerCost()));
-                format = format.replace("%receiveLocal%", Economy.format(gate.getReceiveLocalCost()));
-                format = format.replace("%receiveWorld%", Economy.format(gate.getReceiveWorldCost()));
-                format = format.replace("%receiveServer%", Economy.format(gate.getReceiveServerCost()));
-
-                if (format.trim().isEmpty()) {
-                    if (marker != null)
-                        marker.deleteMarker();
-                    continue;
-                }
+        format = format.replace("\\n", "\n");
+        format = format.replace("%name%", gate.getName());
+        format = format.replace("%type%", gate.getType().toString());
+        format = format.replace("%creator%", gate.getCreatorName());
+        format = format.replace("%sendLocal%", Economy.format(gate.getSendLocalCost()));
+        format = format.replace("%sendWorld%", Economy.format(gate.getSendWorldCost()));
+        format = format.replace("%sendServer%", Economy.format(gate.getSendServerCost()));
+        format = format.replace("%receiveLocal%", Economy.format(gate.getReceiveLocalCost()));
+        format = format.replace("%receiveWorld%", Economy.format(gate.getReceiveWorldCost()));
+        format = format.replace("%receiveServer%", Economy.format(gate.getReceiveServerCost()));
 
-                if (marker == null) {
-                    marker = markerSet.createMarker(gate.getFullName(), format, gate.getWorld().getName(), center.getX(), center.getY(), center.getZ(), markerIcon, false);
-                    if (marker != null)
-                        Utils.debug("marker for %s created", gate.getFullName());
-                } else {
-                    Utils.debug("reusing marker for %s", gate.getFullName());
-                    marker.setLabel(format);
-                }
-            }
+        if (format.trim().isEmpty()) {
+            if (marker != null)
+                deleteMarker(marker);
+            return;
+        }
 
-            for (Marker marker : currentMarkers.values()) {
-                marker.deleteMarker();
-                Utils.debug("marker for %s created", marker.getMarkerID());
-            }
+        if (marker == null) {
+            marker = markerSet.createMarker(gate.getFullName(), format, gate.getWorld().getName(), center.getX(), center.getY(), center.getZ(), markerIcon, false);
+            if (marker != null)
+                Utils.debug("marker for %s created", gate.getFullName());
+        } else if (! format.equals(marker.getLabel())) {
+            Utils.debug("updating marker for %s", gate.getFullName());
+            marker.setLabel(format);
         }
+    }
 
+    private static void deleteMarker(Marker marker) {
+        marker.deleteMarker();
+        Utils.debug("marker for %s deleted", marker.getMarkerID());
+    }
+
+    private static void encodeGate(LocalGateImpl gate) {
+        Vector center = gate.getCenter();
+        if (center == null) return;
+        StringBuilder sb = new StringBuilder();
+        sb.append("  {\n");
+        sb.append("    \"name\": \"").append(gate.getName()).append("\",\n");
+        sb.append("    \"world\": \"").append(gate.getWorld().getName()).append("\",\n");
+        sb.append("    \"type\": \"").append(gate.getType().toString()).append("\",\n");
+        sb.append("    \"links\": [\n");
+        for (Iterator<String> li = gate.getLinks().iterator(); li.hasNext();) {
+            sb.append("      \"").append(li.next()).append("\"");
+            sb.append(li.hasNext() ? ",\n" : "\n");
+        }
+        sb.append("    ],\n");
+        sb.append("    \"x\": ").append(center.getX()).append(",\n");
+        sb.append("    \"y\": ").append(center.getY()).append(",\n");
+        sb.append("    \"z\": ").append(center.getZ()).append(",\n");
+        if (Economy.isAvailable()) {
+            if (gate.getLinkLocal()) {
+                sb.append("    \"onWorldSend\": \"").append(Economy.format(gate.getSendLocalCost())).append("\",\n");
+                sb.append("    \"onWorldReceive\": \"").append(Economy.format(gate.getReceiveLocalCost())).append("\",\n");
+            }
+            if (gate.getLinkWorld()) {
+                sb.append("    \"offWorldSend\": \"").append(Economy.format(gate.getSendWorldCost())).append("\",\n");
+                sb.append("    \"offWorldReceive\": \"").append(Economy.format(gate.getReceiveWorldCost())).append("\",\n");
+            }
+            if (gate.getLinkServer()) {
+                sb.append("    \"offServerSend\": \"").append(Economy.format(gate.getSendServerCost())).append("\",\n");
+                sb.append("    \"offServerReceive\": \"").append(Economy.format(gate.getReceiveServerCost())).append("\",\n");
+            }
+        }
+        sb.append("    \"creator\": \"").append(gate.getCreatorName()).append("\"\n");
+        sb.append("  }");
+        gateJSON.put(gate.getFullName(), sb.toString());
     }
 
     private static void exportJSON() {
@@ -126,52 +264,57 @@ public final class Markers {
         if (! file.isAbsolute())
             file = new File(Global.plugin.getDataFolder(), fileName);
 
-        Utils.debug("exporting endpoints to %s", file.getAbsolutePath());
+        synchronized (exportLock) {
+            exportFile = file;
+            exportParts = new ArrayList<String>(gateJSON.values());
+            if (exporting) return;
+            exporting = true;
+        }
+        Runnable writer = new Runnable() {
+            public void run() {
+                writeExports();
+            }
+        };
+        if (Utils.worker(writer) == null)
+            writer.run();
+    }
+
+    // Writes the latest export until there's nothing newer.
+    private static void writeExports() {
         try {
-            PrintStream out = new PrintStream(file);
-            out.println("[");
-
-            // gates
-            for (Iterator<LocalGateImpl> i = Gates.getLocalGates().iterator(); i.hasNext();) {
-                LocalGateImpl gate = i.next();
-                Vector center = gate.getCenter();
-                out.println("  {");
-                out.println("    \"name\": \"" + gate.getName() + "\",");
-                out.println("    \"world\": \"" + gate.getWorld().getName() + "\",");
-                out.println("    \"type\": \"" + gate.getType().toString() + "\",");
-                out.println("    \"links\": [");
-                for (Iterator<String> li = gate.getLinks().iterator(); li.hasNext();) {
-                    out.print("      \"" + li.next() + "\"");
-                    out.println(li.hasNext() ? "," : "");
-                }
-                out.println("    ],");
-                out.println("    \"x\": " + center.getX() + ",");
-                out.println("    \"y\": " + center.getY() + ",");
-                out.println("    \"z\": " + center.getZ() + ",");
-                if (Economy.isAvailable()) {
-                    if (gate.getLinkLocal()) {
-                        out.println("    \"onWorldSend\": \"" + Economy.format(gate.getSendLocalCost()) + "\",");
-                        out.println("    \"onWorldReceive\": \"" + Economy.format(gate.getReceiveLocalCost()) + "\",");
-                    }
-                    if (gate.getLinkWorld()) {
-                        out.println("    \"offWorldSend\": \"" + Economy.format(gate.getSendWorldCost()) + "\",");
-                        out.println("    \"offWorldReceive\": \"" + Economy.format(gate.getReceiveWorldCost()) + "\",");
-                    }
-                    if (gate.getLinkServer()) {
-                        out.println("    \"offServerSend\": \"" + Economy.format(gate.getSendServerCost()) + "\",");
-                        out.println("    \"offServerReceive\": \"" + Economy.format(gate.getReceiveServerCost()) + "\",");
-                    }
+            while (true) {
+                File file;
+                List<String> parts;
+                synchronized (exportLock) {
+                    if (exportParts == null) break;
+                    file = exportFile;
+                    parts = exportParts;
+                    exportParts = null;
                 }
-                out.println("    \"creator\": \"" + gate.getCreatorName() + "\"");
-                out.println("  }" + (i.hasNext() ? "," : ""));
+                writeExport(file, parts);
+            }
+        } finally {
+            synchronized (exportLock) {
+                exporting = false;
+                exportLock.notifyAll();
             }
+        }
+    }
 
-            out.println("]");
-            out.close();
+    private static void writeExport(File file, List<String> parts) {
+        Utils.debug("exporting endpoints to %s", file.getAbsolutePath());
+        StringBuilder sb = new StringBuilder();
+        sb.append("[\n");
+        for (Iterator<String> i = parts.iterator(); i.hasNext();) {
+            sb.append(i.next());
+            sb.append(i.hasNext() ? ",\n" : "\n");
+        }
+        sb.append("]\n");
+        try {
+            Utils.writeFileAtomically(file, sb.toString().getBytes("UTF-8"));
         } catch (IOException ioe) {
             Utils.warning("unable to write %s: %s", file.getAbsolutePath(), ioe.getMessage());
         }
     }
 
-
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+/**
+ * Remembers which chunk each moving entity was last in and whether any
+ * portal overlaps it.
+ * <p>
+ * The move listeners ask this first, so a move within a chunk that has no
+ * portals, by an entity that holds no gate lock or countdown, is answered
+ * without touching the portal map. An entity's entry is refreshed when it
+ * changes chunks or when portals are opened or closed. Entries are dropped
+ * when the entity quits, is destroyed or is unloaded with its chunk, and a
+ * periodic sweep drops any left behind by entities that were removed some
+ * other way. Must be used on the main thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class MoveCache {
+
+    // millis between sweeps for entities that are gone
+    private static final long SWEEP_INTERVAL = 60000;
+
+    private static final IntMap<Entry> entries = new IntMap<Entry>();
+    private static Timers.Timer sweepTimer = null;
+
+    private static long fastMoves = 0;
+    private static long slowMoves = 0;
+
+    // Returns true if the move can't reach a portal and there's nothing to clean up for the entity.
+    public static boolean canSkip(Entity entity, Location to) {
+        World world = to.getWorld();
+        int cx = to.getBlockX() >> 4;
+        int cz = to.getBlockZ() >> 4;
+        long chunk = GateMap.chunkKey(cx, cz);
+        int version = Gates.getPortalVersion();
+        Entry entry = entries.get(entity.getEntityId());
+        if (entry == null) {
+            entry = new Entry(entity);
+            entries.put(entity.getEntityId(), entry);
+            scheduleSweep();
+        }
+        if ((entry.world != world) || (entry.chunk != chunk) || (entry.version != version)) {
+            entry.world = world;
+            entry.chunk = chunk;
+            entry.version = version;
+            entry.portals = Gates.hasPortalChunk(world, cx, cz);
+        }
+        if (entry.portals || (! entry.clear)) {
+            slowMoves++;
+            return false;
+        }
+        fastMoves++;
+        return true;
+    }
+
+    // Called after a slow move to note whether the entity still holds a gate lock or countdown.
+    public static void setClear(Entity entity, boolean clear) {
+        Entry entry = entries.get(entity.getEntityId());
+        if (entry != null) entry.clear = clear;
+    }
+
+    // Called when the entity gets a gate lock or countdown.
+    public static void setDirty(Entity entity) {
+        setClear(entity, false);
+    }
+
+    public static void remove(Entity entity) {
+        entries.remove(entity.getEntityId());
+    }
+
+    public static void removeChunk(Chunk chunk) {
+        for (Entity entity : chunk.getEntities())
+            entries.remove(entity.getEntityId());
+    }
+
+    public static void removeWorld(World world) {
+        for (int id : entries.keys()) {
+            Entry entry = entries.get(id);
+            if ((entry != null) && (entry.world == world))
+                entries.remove(id);
+        }
+    }
+
+    public static void clear() {
+        entries.clear();
+        if (sweepTimer != null) {
+            sweepTimer.cancel();
+            sweepTimer = null;
+        }
+    }
+
+    public static int size() {
+        return entries.size();
+    }
+
+    public static long getFastMoves() {
+        return fastMoves;
+    }
+
+    public static long getSlowMoves() {
+        return slowMoves;
+    }
+
+    private static void scheduleSweep() {
+        if ((sweepTimer != null) && sweepTimer.isPending()) return;
+        sweepTimer = Timers.schedule("move cache sweep", new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL);
+    }
+
+    private static void sweep() {
+        for (int id : entries.keys()) {
+            Entry entry = entries.get(id);
+            if ((entry != null) && (entry.entity.isDead() || (! entry.entity.isValid())))
+                entries.remove(id);
+        }
+        if (entries.size() > 0)
+            scheduleSweep();
+    }
+
+    private static final class Entry {
+        final Entity entity;
+        World world;
+        long chunk;
+        int version;
+        boolean portals;
+        // true once the entity was seen without a gate lock or countdown
+        boolean clear = false;
+        Entry(Entity entity) {
+            this.entity = entity;
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the regular expressions used by filter options.
+ * <p>
+ * Compiled patterns are shared, so the same expression used by several
+ * gates, servers or designs is only compiled once, and the least recently
+ * used patterns are dropped when the cache is full. Compiled patterns are
+ * immutable, so they can be used from any thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class Patterns {
+
+    private static final int MAX_SIZE = 256;
+
+    private static final Map<String,Pattern> cache = new LinkedHashMap<String,Pattern>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Pattern> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    // Throws PatternSyntaxException like Pattern.compile. Invalid expressions aren't cached.
+    public static Pattern compile(String regex) {
+        synchronized (cache) {
+            Pattern pattern = cache.get(regex);
+            if (pattern != null) {
+                hits++;
+                return pattern;
+            }
+            misses++;
+            pattern = Pattern.compile(regex);
+            cache.put(regex, pattern);
+            return pattern;
+        }
+    }
+
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public static long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+}
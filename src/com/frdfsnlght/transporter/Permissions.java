@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -31,6 +32,15 @@ import ru.tehkode.permissions.PermissionManager;
 import ru.tehkode.permissions.bukkit.PermissionsEx;
 
 /**
+ * Checks player permissions with whichever permissions system is in use.
+ * <p>
+ * Decisions are cached by world, player and permission for a few seconds,
+ * and the cache is cleared when a plugin is enabled or disabled. The
+ * server's ops, white-list and banned players are kept in sets that are
+ * refreshed every second. Basic permissions are parsed into a tree of
+ * permission nodes when permissions.properties changes.
+ * </p>
+ *
  * @author frdfsnlght <frdfsnlght@gmail.com>
  */
 public final class Permissions {
@@ -47,6 +57,29 @@ public final class Permissions {
 //    private static Map<String,ListFile> listFiles = new HashMap<String,ListFile>();
     private static Map<String,PropertiesFile> propertiesFiles = new HashMap<String,PropertiesFile>();
 
+    // millis decisions are cached
+    private static final long DECISION_TIME = 5000;
+    // millis the server's player lists are cached
+    private static final long LIST_TIME = 1000;
+    // millis between checks for changes to permissions.properties
+    private static final long FILE_CHECK_INTERVAL = 1000;
+
+    // guards everything below
+    private static final Object lock = new Object();
+
+    private static final Map<Check,Boolean> decisions = new HashMap<Check,Boolean>();
+    private static long decisionsClearedAt = 0;
+
+    // lower case player names
+    private static Set<String> ops = null;
+    private static Set<String> whitelisted = null;
+    private static Set<String> banned = null;
+    private static long listsReadAt = 0;
+
+    private static Node basicRules = null;
+    private static Properties basicRulesSource = null;
+    private static long basicRulesCheckedAt = 0;
+
     private static boolean basicPermsInitted = false;
     private static net.milkbowl.vault.permission.Permission vaultPlugin = null;
     private static PermissionHandler permissionsPlugin = null;
@@ -132,50 +165,29 @@ public final class Permissions {
         return hasBasic(player.getName(), perm);
     }
 
+    // The most specific node, or node.*, that mentions the player decides.
     public static boolean hasBasic(String name, String perm) {
-        Properties permissions = getProperties(permissionsFile);
+        Node node = getBasicRules();
         Utils.debug("basic permissions check '%s' for %s", perm, name);
-        for (;;) {
-            String prop = permissions.getProperty(perm);
-            if (prop != null)
-                Utils.debug("found basic permissions node for '%s': %s", perm, prop);
-            else {
-                prop = permissions.getProperty(perm + ".*");
-                if (prop != null)
-                    Utils.debug("found basic permissions node for '%s.*': %s", perm, prop);
-            }
-            if (prop != null) {
-                String[] players = prop.split("\\s*,\\s*");
-                boolean grant = false;
-                boolean found = false;
-                for (String player : players) {
-                    if (player.equals("*") || player.equals("+*")) {
-                        grant = true;
-                        found = true;
-                    } else if (player.equals("-*")) {
-                        grant = false;
-                        found = true;
-                    } else if (player.equals(name) || player.equals("+" + name)) {
-                        grant = true;
-                        found = true;
-                    } else if (player.equals("-" + name)) {
-                        grant = false;
-                        found = true;
-                    }
-                }
-                if (found) {
-                    Utils.debug("basic permission %s granted", grant ? "is" : "is not");
-                    return grant;
-                }
-            } else
-                Utils.debug("basic permissions node '%s' not found", perm);
-            int pos = perm.lastIndexOf(".");
-            if (pos == -1) {
-                Utils.debug("basic permission is not granted");
-                return false;
+        String[] parts = perm.split("\\.", -1);
+        Node[] path = new Node[parts.length];
+        int depth = 0;
+        while (depth < parts.length) {
+            node = node.children.get(parts[depth]);
+            if (node == null) break;
+            path[depth++] = node;
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            Rule rule = (path[i].rule != null) ? path[i].rule : path[i].wildRule;
+            if (rule == null) continue;
+            Boolean grant = rule.decide(name);
+            if (grant != null) {
+                Utils.debug("basic permission %s granted by '%s'", grant ? "is" : "is not", rule.key);
+                return grant;
             }
-            perm = perm.substring(0, pos);
         }
+        Utils.debug("basic permission is not granted");
+        return false;
     }
 
     public static boolean has(Player player, String perm) {
@@ -207,77 +219,72 @@ public final class Permissions {
             Utils.debug("player '%s' is op", playerName);
             return;
         }
-
-        if (vaultAvailable()) {
-            for (String perm : perms) {
-                if (requireAll) {
-                    if (! vaultPlugin.has(worldName, playerName, perm))
-                        throw new PermissionsException("not permitted");
-                } else {
-                    if (vaultPlugin.has(worldName, playerName, perm)) return;
-                }
+        for (String perm : perms) {
+            if (requireAll) {
+                if (! hasCached(worldName, playerName, perm))
+                    throw new PermissionsException("not permitted");
+            } else {
+                if (hasCached(worldName, playerName, perm)) return;
             }
-            if ((! requireAll) && (perms.length > 0))
-                throw new PermissionsException("not permitted");
-            return;
         }
+        if ((! requireAll) && (perms.length > 0))
+            throw new PermissionsException("not permitted");
+    }
 
-        if (permissionsAvailable()) {
-            for (String perm : perms) {
-                if (requireAll) {
-                    if (! permissionsPlugin.permission(worldName, playerName, perm))
-                        throw new PermissionsException("not permitted");
-                } else {
-                    if (permissionsPlugin.permission(worldName, playerName, perm)) return;
-                }
-            }
-            if ((! requireAll) && (perms.length > 0))
-                throw new PermissionsException("not permitted");
-            return;
+    // Forgets all cached decisions, rules and player lists.
+    public static void invalidate() {
+        synchronized (lock) {
+            decisions.clear();
+            decisionsClearedAt = System.currentTimeMillis();
+            ops = whitelisted = banned = null;
+            basicRules = null;
+            basicRulesSource = null;
         }
+    }
 
-        if (permissionsExAvailable()) {
-            for (String perm : perms) {
-                if (requireAll) {
-                    if (! permissionsExPlugin.has(playerName, perm, worldName))
-                        throw new PermissionsException("not permitted");
-                } else {
-                    if (permissionsExPlugin.has(playerName, perm, worldName)) return;
-                }
+    private static boolean hasCached(String worldName, String playerName, String perm) throws PermissionsException {
+        Check check = new Check(worldName, playerName, perm);
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if ((now - decisionsClearedAt) >= DECISION_TIME) {
+                decisions.clear();
+                decisionsClearedAt = now;
             }
-            if ((! requireAll) && (perms.length > 0))
-                throw new PermissionsException("not permitted");
-            return;
+            Boolean decision = decisions.get(check);
+            if (decision != null) return decision;
         }
-
-        if (basicPermsAvailable()) {
-            for (String perm : perms) {
-                if (requireAll) {
-                    if (! hasBasic(playerName, perm))
-                        throw new PermissionsException("not permitted");
-                } else {
-                    if (hasBasic(playerName, perm)) return;
-                }
-            }
-            if ((! requireAll) && (perms.length > 0))
-                throw new PermissionsException("not permitted");
-            return;
+        boolean decision = lookup(worldName, playerName, perm);
+        synchronized (lock) {
+            decisions.put(check, decision);
         }
+        return decision;
+    }
+
+    private static boolean lookup(String worldName, String playerName, String perm) throws PermissionsException {
+        if (vaultAvailable())
+            return vaultPlugin.has(worldName, playerName, perm);
+        if (permissionsAvailable())
+            return permissionsPlugin.permission(worldName, playerName, perm);
+        if (permissionsExAvailable())
+            return permissionsExPlugin.has(playerName, perm, worldName);
+        if (basicPermsAvailable())
+            return hasBasic(playerName, perm);
 
         // should never get here!
         throw new PermissionsException("not permitted because no permissions system is available?");
-
     }
 
     // can't check player's IP because it might not be what it is on the sending side due to NAT
     public static void connect(String playerName) throws PermissionsException {
         if (Global.plugin.getServer().getOnlinePlayers().size() >= Global.plugin.getServer().getMaxPlayers())
             throw new PermissionsException("maximim players already connected");
-        for (OfflinePlayer p : Global.plugin.getServer().getWhitelistedPlayers())
-            if (p.getName().equalsIgnoreCase(playerName)) return;
-        for (OfflinePlayer p : Global.plugin.getServer().getBannedPlayers())
-            if (p.getName().equalsIgnoreCase(playerName))
+        String name = playerName.toLowerCase();
+        synchronized (lock) {
+            readLists();
+            if (whitelisted.contains(name)) return;
+            if (banned.contains(name))
                 throw new PermissionsException("player is banned");
+        }
         /*
         if (getProperties(new File(SERVERPROPERTIES_FILE)).getProperty("white-list", "false").equalsIgnoreCase("true"))
             if (! getList(new File(WHITELIST_FILE), true).contains(playerName.toLowerCase()))
@@ -294,13 +301,71 @@ public final class Permissions {
     }
 
     public static boolean isOp(String playerName) {
-        Set<OfflinePlayer> ops = Global.plugin.getServer().getOperators();
-        for (OfflinePlayer p : Global.plugin.getServer().getOperators())
-            if (p.getName().equalsIgnoreCase(playerName)) return true;
-        return false;
+        synchronized (lock) {
+            readLists();
+            return ops.contains(playerName.toLowerCase());
+        }
 //        return getList(new File(OPS_FILE), true).contains(playerName);
     }
 
+    // must be called while holding lock
+    private static void readLists() {
+        long now = System.currentTimeMillis();
+        if ((ops != null) && ((now - listsReadAt) < LIST_TIME)) return;
+        ops = nameSet(Global.plugin.getServer().getOperators());
+        whitelisted = nameSet(Global.plugin.getServer().getWhitelistedPlayers());
+        banned = nameSet(Global.plugin.getServer().getBannedPlayers());
+        listsReadAt = now;
+    }
+
+    private static Set<String> nameSet(Set<OfflinePlayer> players) {
+        Set<String> names = new HashSet<String>(players.size() * 2);
+        for (OfflinePlayer p : players)
+            if (p.getName() != null)
+                names.add(p.getName().toLowerCase());
+        return names;
+    }
+
+    private static Node getBasicRules() {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if ((basicRules != null) && ((now - basicRulesCheckedAt) < FILE_CHECK_INTERVAL))
+                return basicRules;
+            basicRulesCheckedAt = now;
+            // getProperties returns a new object when the file changes
+            Properties permissions = getProperties(permissionsFile);
+            if ((basicRules == null) || (permissions != basicRulesSource)) {
+                basicRules = parseRules(permissions);
+                basicRulesSource = permissions;
+                decisions.clear();
+            }
+            return basicRules;
+        }
+    }
+
+    private static Node parseRules(Properties permissions) {
+        Node root = new Node();
+        for (String key : permissions.stringPropertyNames()) {
+            Node parent = null;
+            Node node = root;
+            for (String part : key.split("\\.", -1)) {
+                Node child = node.children.get(part);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(part, child);
+                }
+                parent = node;
+                node = child;
+            }
+            Rule rule = new Rule(key, permissions.getProperty(key));
+            node.rule = rule;
+            // "a.b.*" is also the fallback for "a.b"
+            if (key.endsWith(".*"))
+                parent.wildRule = rule;
+        }
+        return root;
+    }
+
     /*
     private static Set<String> getList(File file, boolean forceLower) {
         ListFile listFile = listFiles.get(file.getAbsolutePath());
@@ -359,4 +424,82 @@ public final class Permissions {
         long lastRead = 0;
     }
 
+    private static final class Check {
+        final String worldName;
+        final String playerName;
+        final String perm;
+        final int hash;
+
+        Check(String worldName, String playerName, String perm) {
+            this.worldName = worldName;
+            this.playerName = playerName;
+            this.perm = perm;
+            hash = ((((worldName == null) ? 0 : worldName.hashCode()) * 31) + playerName.hashCode()) * 31 + perm.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Check)) return false;
+            Check c = (Check)o;
+            return (hash == c.hash) &&
+                   perm.equals(c.perm) &&
+                   playerName.equals(c.playerName) &&
+                   ((worldName == null) ? (c.worldName == null) : worldName.equals(c.worldName));
+        }
+    }
+
+    // One level of a permission, like "gate" in "trp.gate.create".
+    private static final class Node {
+        final Map<String,Node> children = new HashMap<String,Node>();
+        // from the node's own property
+        Rule rule = null;
+        // from the node's ".*" property, only used when there's no rule
+        Rule wildRule = null;
+    }
+
+    // A comma separated list of players, each optionally prefixed with + or -, where the last mention wins.
+    private static final class Rule {
+        final String key;
+        private final Map<String,Integer> indexes = new HashMap<String,Integer>();
+        private final Map<String,Boolean> grants = new HashMap<String,Boolean>();
+        private int everyoneIndex = -1;
+        private boolean everyoneGrant = false;
+
+        Rule(String key, String value) {
+            this.key = key;
+            String[] players = value.split("\\s*,\\s*");
+            for (int i = 0; i < players.length; i++) {
+                String player = players[i];
+                boolean grant = true;
+                if (player.startsWith("+"))
+                    player = player.substring(1);
+                else if (player.startsWith("-")) {
+                    player = player.substring(1);
+                    grant = false;
+                }
+                if (player.equals("*")) {
+                    everyoneIndex = i;
+                    everyoneGrant = grant;
+                } else if (! player.isEmpty()) {
+                    indexes.put(player, i);
+                    grants.put(player, grant);
+                }
+            }
+        }
+
+        // Returns null if the player isn't mentioned.
+        Boolean decide(String name) {
+            Integer index = indexes.get(name);
+            if (index == null)
+                return (everyoneIndex == -1) ? null : everyoneGrant;
+            if (everyoneIndex > index) return everyoneGrant;
+            return grants.get(name);
+        }
+    }
+
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes configuration and gate files in the background.
+ * <p>
+ * Saved files are held for the configured save interval, so a file that's
+ * saved several times in that window is only written once. Each file is
+ * written to a temporary file which is then renamed over the original,
+ * and files whose content hasn't changed since they were last written are
+ * skipped. Gate files go to the world's GateStore instead when the
+ * binary gate store is enabled.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class Persister {
+
+    // guards everything below
+    private static final Object lock = new Object();
+
+    private static final Map<File,TypeMap> pending = new LinkedHashMap<File,TypeMap>();
+    private static final Map<File,TypeMap> inFlight = new HashMap<File,TypeMap>();
+    private static long saveAt = 0;
+    private static int flushing = 0;
+    private static boolean stopping = false;
+    private static Thread thread = null;
+
+    // held while a file is written or deleted, taken before lock
+    private static final Object fileLock = new Object();
+
+    // only used while holding fileLock
+    private static final Map<File,byte[]> writtenDigests = new HashMap<File,byte[]>();
+
+    // The caller must not change the map after handing it over.
+    public static void save(File file, TypeMap conf) {
+        synchronized (lock) {
+            if (pending.isEmpty())
+                saveAt = System.currentTimeMillis() + Config.getSaveInterval();
+            pending.put(file, conf);
+            if (thread == null) {
+                stopping = false;
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        Persister.run();
+                    }
+                }, "Transporter persister");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // Forgets any pending save for the file before deleting it.
+    // A file that was never written is considered deleted if its save was pending.
+    public static boolean delete(File file) {
+        synchronized (fileLock) {
+            boolean cancelled;
+            synchronized (lock) {
+                cancelled = (pending.remove(file) != null) | (inFlight.remove(file) != null);
+            }
+            writtenDigests.remove(file);
+            if (GateStore.handles(file))
+                return GateStore.delete(file) || cancelled;
+            return file.delete() || (cancelled && (! file.exists()));
+        }
+    }
+
+    // Remembers the content of a file that was just loaded, so saving it unchanged won't rewrite it.
+    public static void loaded(File file) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(readFile(file));
+        } catch (NoSuchAlgorithmException e) {
+            return;
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (fileLock) {
+            writtenDigests.put(file, digest);
+        }
+    }
+
+    // Writes everything that's pending and waits for it to finish.
+    public static void flush() {
+        synchronized (lock) {
+            if (thread == null) return;
+            flushing++;
+            lock.notifyAll();
+            try {
+                while ((thread != null) && ((! pending.isEmpty()) || (! inFlight.isEmpty()))) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {}
+                }
+            } finally {
+                flushing--;
+            }
+        }
+    }
+
+    // Writes everything that's pending and waits for the thread to end.
+    public static void stop() {
+        Thread t;
+        synchronized (lock) {
+            if (thread == null) return;
+            t = thread;
+            stopping = true;
+            lock.notifyAll();
+        }
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {}
+        }
+    }
+
+    private static void run() {
+        try {
+            while (true) {
+                Map<File,TypeMap> batch;
+                synchronized (lock) {
+                    while (pending.isEmpty() && (! stopping)) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException ie) {}
+                    }
+                    if (pending.isEmpty()) break;
+                    while ((flushing == 0) && (! stopping)) {
+                        long wait = saveAt - System.currentTimeMillis();
+                        if (wait <= 0) break;
+                        try {
+                            lock.wait(wait);
+                        } catch (InterruptedException ie) {}
+                    }
+                    batch = new LinkedHashMap<File,TypeMap>(pending);
+                    inFlight.putAll(pending);
+                    pending.clear();
+                }
+                for (Map.Entry<File,TypeMap> entry : batch.entrySet())
+                    write(entry.getKey(), entry.getValue());
+                synchronized (lock) {
+                    inFlight.clear();
+                    lock.notifyAll();
+                }
+            }
+        } catch (Throwable t) {
+            Utils.severe(t, "persister failed:");
+        } finally {
+            synchronized (lock) {
+                // anything left over will be written when the thread is restarted
+                pending.putAll(inFlight);
+                inFlight.clear();
+                thread = null;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) != -1)
+                out.write(buffer, 0, len);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, TypeMap conf) {
+        if (GateStore.handles(file)) {
+            synchronized (fileLock) {
+                synchronized (lock) {
+                    if (inFlight.get(file) != conf) return;
+                }
+                try {
+                    GateStore.write(file, conf);
+                } catch (IOException e) {
+                    Utils.warning("unable to save %s: %s", file.getAbsolutePath(), e.getMessage());
+                } catch (IllegalArgumentException e) {
+                    Utils.warning("unable to save %s: %s", file.getAbsolutePath(), e.getMessage());
+                }
+            }
+            return;
+        }
+        byte[] data;
+        try {
+            data = conf.dump().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            Utils.warning("unable to save %s: %s", file.getAbsolutePath(), e.getMessage());
+            return;
+        }
+        byte[] digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {}
+        synchronized (fileLock) {
+            synchronized (lock) {
+                // the file was deleted since we took it
+                if (inFlight.get(file) != conf) return;
+            }
+            try {
+                byte[] lastDigest = writtenDigests.get(file);
+                if ((digest != null) && (lastDigest != null) && file.exists() && MessageDigest.isEqual(digest, lastDigest)) return;
+                Utils.writeFileAtomically(file, data);
+                if (digest != null)
+                    writtenDigests.put(file, digest);
+            } catch (IOException e) {
+                Utils.warning("unable to save %s: %s", file.getAbsolutePath(), e.getMessage());
+            }
+        }
+    }
+
+}
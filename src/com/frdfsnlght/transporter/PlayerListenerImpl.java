@@ -232,12 +232,15 @@ public final class PlayerListenerImpl implements Listener {
             (event.getFrom().getBlockZ() == event.getTo().getBlockZ())) return;
 
         Player player = event.getPlayer();
+        if (MoveCache.canSkip(player, event.getTo())) return;
         LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
         if (fromGate == null) {
             ReservationImpl.removeGateLock(player);
             ReservationImpl.removeCountdown(player);
+            MoveCache.setClear(player, ! ReservationImpl.isGateLocked(player));
             return;
         }
+        MoveCache.setClear(player, false);
         if (ReservationImpl.isGateLocked(player)) return;
 
         if (ReservationImpl.hasCountdown(player)) return;
@@ -322,6 +325,7 @@ public final class PlayerListenerImpl implements Listener {
         ReservationImpl r = ReservationImpl.get(player);
 
         TabList.stopPlayer(player);
+        MoveCache.remove(player);
 
         for (Server server : Servers.getAll())
             server.sendPlayerQuit(player, r != null);
@@ -101,4 +101,8 @@ public abstract class RemoteGateImpl extends GateImpl implements RemoteGate {
         return hidden;
     }
 
+    public void setHidden(boolean hidden) {
+        this.hidden = hidden;
+    }
+
 }
@@ -69,6 +69,11 @@ public final class RemotePlayerImpl implements RemotePlayer {
         return displayName;
     }
 
+    public void setDisplayName(String displayName) {
+        if (displayName == null) displayName = name;
+        this.displayName = displayName;
+    }
+
     
     public RemoteWorld getRemoteWorld() {
         return server.getRemoteWorld(worldName);
@@ -22,10 +22,13 @@ import com.frdfsnlght.transporter.api.Reservation;
 import com.frdfsnlght.transporter.api.ReservationException;
 import com.frdfsnlght.transporter.api.event.EntityArriveEvent;
 import com.frdfsnlght.transporter.api.event.EntityDepartEvent;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -51,20 +54,22 @@ import org.bukkit.util.Vector;
  */
 public final class ReservationImpl implements Reservation {
 
-    private static final Map<Integer,Long> gateLocks = new HashMap<Integer,Long>();
-    private static final Map<Integer,Countdown> countdowns = new HashMap<Integer,Countdown>();
+    private static final IntMap<GateLock> gateLocks = new IntMap<GateLock>();
+    private static final IntMap<Countdown> countdowns = new IntMap<Countdown>();
+    private static final Map<LocalGateImpl,Set<Countdown>> gateCountdowns = new HashMap<LocalGateImpl,Set<Countdown>>();
 
     private static long nextId = 1;
-    private static final Map<Long,ReservationImpl> reservations = new HashMap<Long,ReservationImpl>();
+    private static final LongMap<ReservationImpl> reservations = new LongMap<ReservationImpl>();
+    private static final Map<String,List<ReservationImpl>> playerReservations = new HashMap<String,List<ReservationImpl>>();
 
     public static ReservationImpl get(long id) {
         return reservations.get(id);
     }
 
     public static ReservationImpl get(String playerName) {
-        for (ReservationImpl r : reservations.values())
-            if (playerName.equals(r.playerName)) return r;
-        return null;
+        List<ReservationImpl> rs = playerReservations.get(playerName);
+        if (rs == null) return null;
+        return rs.get(0);
     }
 
     public static ReservationImpl get(Player player) {
@@ -73,6 +78,14 @@ public final class ReservationImpl implements Reservation {
 
     private static boolean put(ReservationImpl r) {
         if (reservations.put(r.localId, r) == null) {
+            if (r.playerName != null) {
+                List<ReservationImpl> rs = playerReservations.get(r.playerName);
+                if (rs == null) {
+                    rs = new ArrayList<ReservationImpl>(1);
+                    playerReservations.put(r.playerName, rs);
+                }
+                rs.add(r);
+            }
             Utils.debug("put reservation %s", r.localId);
             return true;
         }
@@ -80,7 +93,19 @@ public final class ReservationImpl implements Reservation {
     }
 
     private static boolean remove(ReservationImpl r) {
+        ChunkPreloader.release(r);
+        if (r.timeout != null) {
+            r.timeout.cancel();
+            r.timeout = null;
+        }
         if (reservations.remove(r.localId) != null) {
+            if (r.playerName != null) {
+                List<ReservationImpl> rs = playerReservations.get(r.playerName);
+                if (rs != null) {
+                    rs.remove(r);
+                    if (rs.isEmpty()) playerReservations.remove(r.playerName);
+                }
+            }
             Utils.debug("removed reservation %s", r.localId);
             return true;
         }
@@ -89,10 +114,11 @@ public final class ReservationImpl implements Reservation {
 
     public static void removeGateLock(Entity entity) {
         if (entity == null) return;
-        Long expiry = gateLocks.get(entity.getEntityId());
-        if (expiry == null) return;
-        if (expiry <= System.currentTimeMillis()) {
+        GateLock lock = gateLocks.get(entity.getEntityId());
+        if (lock == null) return;
+        if (lock.expired) {
             gateLocks.remove(entity.getEntityId());
+            lock.timer.cancel();
             Utils.debug("removed gate lock for entity %d", entity.getEntityId());
         }
     }
@@ -104,7 +130,12 @@ public final class ReservationImpl implements Reservation {
 
     public static void addGateLock(Entity entity) {
         if (entity == null) return;
-        gateLocks.put(entity.getEntityId(), System.currentTimeMillis() + Config.getGateLockExpiration());
+        GateLock lock = new GateLock(entity);
+        GateLock old = gateLocks.put(entity.getEntityId(), lock);
+        if (old != null)
+            old.timer.cancel();
+        lock.schedule();
+        MoveCache.setDirty(entity);
         Utils.debug("added gate lock for entity %d", entity.getEntityId());
     }
 
@@ -112,36 +143,41 @@ public final class ReservationImpl implements Reservation {
         if (entity == null) return;
         Countdown countdown = countdowns.get(entity.getEntityId());
         if (countdown == null) return;
-        countdowns.remove(entity.getEntityId());
+        unindexCountdown(countdown);
         countdown.cancel();
         Utils.debug("removed countdown for entity %d", entity.getEntityId());
     }
 
     public static void removeCountdown(Countdown countdown) {
         if (countdown == null) return;
-        for (Iterator<Integer> i = countdowns.keySet().iterator(); i.hasNext(); ) {
-            int id = i.next();
-            if (countdowns.get(id) == countdown) {
-                i.remove();
-                Utils.debug("removed countdown for entity %d", countdown.getPlayer().getEntityId());
-            }
-        }
+        if (countdowns.get(countdown.getPlayer().getEntityId()) != countdown) return;
+        unindexCountdown(countdown);
+        Utils.debug("removed countdown for entity %d", countdown.getPlayer().getEntityId());
     }
 
     public static void removeCountdowns(LocalGateImpl gate) {
-        for (Iterator<Integer> i = countdowns.keySet().iterator(); i.hasNext(); ) {
-            int id = i.next();
-            Countdown countdown = countdowns.get(id);
-            if (countdown.getGate() == gate) {
-                i.remove();
-                Utils.debug("removed countdown for entity %d", countdown.getPlayer().getEntityId());
-            }
+        Set<Countdown> gcs = gateCountdowns.get(gate);
+        if (gcs == null) return;
+        for (Countdown countdown : new ArrayList<Countdown>(gcs)) {
+            unindexCountdown(countdown);
+            Utils.debug("removed countdown for entity %d", countdown.getPlayer().getEntityId());
         }
     }
 
     public static void addCountdown(Countdown countdown) {
         if (countdown == null) return;
-        countdowns.put(countdown.getPlayer().getEntityId(), countdown);
+        Countdown old = countdowns.put(countdown.getPlayer().getEntityId(), countdown);
+        if (old != null) {
+            Set<Countdown> gcs = gateCountdowns.get(old.getGate());
+            if (gcs != null) gcs.remove(old);
+        }
+        Set<Countdown> gcs = gateCountdowns.get(countdown.getGate());
+        if (gcs == null) {
+            gcs = new HashSet<Countdown>();
+            gateCountdowns.put(countdown.getGate(), gcs);
+        }
+        gcs.add(countdown);
+        MoveCache.setDirty(countdown.getPlayer());
         Utils.debug("added countdown for entity %d", countdown.getPlayer().getEntityId());
     }
 
@@ -150,6 +186,14 @@ public final class ReservationImpl implements Reservation {
         return countdowns.containsKey(entity.getEntityId());
     }
 
+    private static void unindexCountdown(Countdown countdown) {
+        countdowns.remove(countdown.getPlayer().getEntityId());
+        Set<Countdown> gcs = gateCountdowns.get(countdown.getGate());
+        if (gcs == null) return;
+        gcs.remove(countdown);
+        if (gcs.isEmpty()) gateCountdowns.remove(countdown.getGate());
+    }
+
     private long localId = nextId++;
     private long remoteId = 0;
     private boolean departing = true;
@@ -199,6 +243,7 @@ public final class ReservationImpl implements Reservation {
     private Server toServer = null;         // remote gate
 
     private boolean createdEntity = false;
+    private Timers.Timer timeout = null;
 
     // player stepping into gate
     public ReservationImpl(Player player, LocalGateImpl fromGate) throws ReservationException {
@@ -523,8 +568,9 @@ public final class ReservationImpl implements Reservation {
 
                     // setup delayed task to remove the reservation on this side if it doesn't work out
                     final ReservationImpl me = this;
-                    Utils.fireDelayed(new Runnable() {
+                    timeout = Timers.schedule("reservation", new Runnable() {
                         public void run() {
+                            timeout = null;
                             if (! remove(me)) return;
                             Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
                         }
@@ -573,10 +619,16 @@ public final class ReservationImpl implements Reservation {
                     Utils.warning("reservation arrival for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName(), e.getMessage());
                 }
             } else {
+                // get the destination loaded while the player switches servers
+                Location arrival = getExpectedArrival();
+                if (arrival != null)
+                    ChunkPreloader.pin(this, arrival);
+
                 // set up a delayed task to cancel the arrival if they never arrive
                 final ReservationImpl res = this;
-                Utils.fireDelayed(new Runnable() {
+                timeout = Timers.schedule("reservation", new Runnable() {
                     public void run() {
+                        timeout = null;
                         if (! remove(res)) return;
                         Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
                         try {
@@ -649,8 +701,10 @@ public final class ReservationImpl implements Reservation {
 
             if (! toServer.sendPlayer(player)) return;
         }
-        if ((entity != null) && (entity != player))
+        if ((entity != null) && (entity != player)) {
+            MoveCache.remove(entity);
             entity.remove();
+        }
 
         EntityDepartEvent event = new EntityDepartEvent(this);
         Global.plugin.getServer().getPluginManager().callEvent(event);
@@ -900,6 +954,21 @@ public final class ReservationImpl implements Reservation {
         }
     }
 
+    // Returns roughly where the traveler will arrive.
+    private Location getExpectedArrival() {
+        if (toGateLocal != null)
+            return toGateLocal.getCenter().toLocation(toGateLocal.getWorld());
+        if (toLocation != null) {
+            if (toLocation.getWorld() != null) return toLocation;
+            Location location = toLocation.clone();
+            location.setWorld(Global.plugin.getServer().getWorlds().get(0));
+            return location;
+        }
+        if (toWorld != null)
+            return toWorld.getSpawnLocation();
+        return Global.plugin.getServer().getWorlds().get(0).getSpawnLocation();
+    }
+
     private void prepareDestination() {
         if (toGateLocal != null) {
             toLocation = toGateLocal.getSpawnLocation(fromLocation, fromDirection);
@@ -1034,11 +1103,13 @@ public final class ReservationImpl implements Reservation {
             Utils.debug("spoofing vehicle/passenger teleportation");
             switch (entityType) {
                 case MINECART:
+                    MoveCache.remove(entity);
                     entity.remove();
                     entity = theWorld.spawn(theLocation, org.bukkit.entity.minecart.RideableMinecart.class);
                     ((RideableMinecart)entity).setPassenger(player);
                     break;
                 case BOAT:
+                    MoveCache.remove(entity);
                     entity.remove();
                     entity = theWorld.spawn(theLocation, Boat.class);
                     ((Boat)entity).setPassenger(player);
@@ -1134,8 +1205,10 @@ public final class ReservationImpl implements Reservation {
     }
 
     private void rollbackTraveler() {
-        if (createdEntity)
+        if (createdEntity) {
+            MoveCache.remove(entity);
             entity.remove();
+        }
     }
 
     private void commitTraveler() {
@@ -1175,4 +1248,38 @@ public final class ReservationImpl implements Reservation {
     }
 */
 
+    // Keeps an entity from using a gate right after it has been teleported.
+    private static final class GateLock {
+
+        final Entity entity;
+        Timers.Timer timer;
+        // the lock goes as soon as the entity is out of any portal
+        boolean expired = false;
+
+        GateLock(Entity entity) {
+            this.entity = entity;
+        }
+
+        void schedule() {
+            timer = Timers.schedule("gate lock", new Runnable() {
+                public void run() {
+                    expire();
+                }
+            }, Config.getGateLockExpiration());
+        }
+
+        void expire() {
+            expired = true;
+            if (gateLocks.get(entity.getEntityId()) != this) return;
+            boolean gone = entity.isDead() || ((entity instanceof Player) && (! ((Player)entity).isOnline()));
+            if (gone || (Gates.findGateForPortal(entity.getLocation()) == null)) {
+                gateLocks.remove(entity.getEntityId());
+                Utils.debug("expired gate lock for entity %d", entity.getEntityId());
+            } else
+                // still standing in a portal, so look again later
+                schedule();
+        }
+
+    }
+
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+/**
+ * One of a design's screen blocks along with the design's matchable
+ * blocks, pre-rotated for each direction a gate can face.
+ * <p>
+ * Block positions are kept as offsets from the screen so a placed sign
+ * can be checked against the design without building a TransformedDesign
+ * until the match succeeds.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class ScreenTemplate {
+
+    private static final BlockFace[] DIRECTIONS = new BlockFace[] {
+        BlockFace.NORTH,
+        BlockFace.EAST,
+        BlockFace.SOUTH,
+        BlockFace.WEST
+    };
+
+    private final Design design;
+    private final DesignBlock screen;
+
+    // per direction, x,y,z offsets from the screen and the block expected there
+    private final int[][] offsets = new int[DIRECTIONS.length][];
+    private final BuildableBlock[][] blocks = new BuildableBlock[DIRECTIONS.length][];
+
+    ScreenTemplate(Design design, DesignBlock screen) {
+        this.design = design;
+        this.screen = screen;
+
+        List<DesignBlock> matchable = new ArrayList<DesignBlock>();
+        for (DesignBlock db : design.getBlocks())
+            if (db.getDetail().isMatchable())
+                matchable.add(db);
+
+        for (int d = 0; d < DIRECTIONS.length; d++) {
+            BlockFace direction = DIRECTIONS[d];
+            int[] offs = new int[matchable.size() * 3];
+            BuildableBlock[] bbs = new BuildableBlock[matchable.size()];
+            Map<BuildableBlock,BuildableBlock> rotated = new HashMap<BuildableBlock,BuildableBlock>();
+            for (int i = 0; i < bbs.length; i++) {
+                DesignBlock db = matchable.get(i);
+                rotate(direction, db.getX() - screen.getX(), db.getY() - screen.getY(), db.getZ() - screen.getZ(), offs, i * 3);
+                BuildableBlock bb = db.getDetail().getBuildBlock();
+                BuildableBlock rbb = rotated.get(bb);
+                if (rbb == null) {
+                    rbb = new BuildableBlock(bb, direction);
+                    rotated.put(bb, rbb);
+                }
+                bbs[i] = rbb;
+            }
+            offsets[d] = offs;
+            blocks[d] = bbs;
+        }
+    }
+
+    Design getDesign() {
+        return design;
+    }
+
+    int getScreenType() {
+        return screen.getDetail().getBuildBlock().getType();
+    }
+
+    // Returns a match if the blocks around the target block, which should be
+    // a screen, make up the design.
+    DesignMatch match(Block target, ChunkSnapshots snapshots) {
+        BlockFace direction = screen.getDetail().getBuildBlock().matchTypeAndDirection(target);
+        if (direction == null) return null;
+        int d = 0;
+        while ((d < DIRECTIONS.length) && (DIRECTIONS[d] != direction)) d++;
+        if (d == DIRECTIONS.length) return null;
+
+        int tx = target.getX(), ty = target.getY(), tz = target.getZ();
+        int[] offs = offsets[d];
+        BuildableBlock[] bbs = blocks[d];
+
+        // check types first so most misses never look at block data
+        for (int i = 0, o = 0; i < bbs.length; i++, o += 3)
+            if (! bbs[i].matchesType(snapshots.getTypeId(tx + offs[o], ty + offs[o + 1], tz + offs[o + 2]))) return null;
+        for (int i = 0, o = 0; i < bbs.length; i++, o += 3) {
+            int x = tx + offs[o], y = ty + offs[o + 1], z = tz + offs[o + 2];
+            if (! bbs[i].matches(snapshots.getTypeId(x, y, z), snapshots.getData(x, y, z))) return null;
+        }
+
+        Utils.debug("matched design '%s' facing %s", design.getName(), direction);
+
+        // the design's 0,0,0 block
+        int[] origin = new int[3];
+        rotate(direction, -screen.getX(), -screen.getY(), -screen.getZ(), origin, 0);
+        Location location = new Location(target.getWorld(), tx + origin[0], ty + origin[1], tz + origin[2]);
+        return new DesignMatch(design, new TransformedDesign(design, location, direction), target.getWorld(), direction);
+    }
+
+    // Same rotation as TransformedDesign.
+    private static void rotate(BlockFace direction, int x, int y, int z, int[] out, int pos) {
+        switch (direction) {
+            case NORTH:
+                out[pos] = x;
+                out[pos + 2] = z;
+                break;
+            case EAST:
+                out[pos] = -z;
+                out[pos + 2] = x;
+                break;
+            case SOUTH:
+                out[pos] = -x;
+                out[pos + 2] = -z;
+                break;
+            case WEST:
+                out[pos] = z;
+                out[pos + 2] = -x;
+                break;
+        }
+        out[pos + 1] = y;
+    }
+
+}
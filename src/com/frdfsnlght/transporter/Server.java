@@ -185,6 +185,9 @@ public final class Server implements OptionsListener, RemoteServer {
     private String sendChatFilter = null;
     private String sendChatFormatFilter = null;
     private String receiveChatFilter = null;
+    private Pattern sendChatPattern = null;
+    private Pattern sendChatFormatPattern = null;
+    private Pattern receiveChatPattern = null;
 
     // Should all player join/quit/kick messages from the remote server be echoed to local users?
     private boolean announcePlayers = false;
@@ -213,6 +216,12 @@ public final class Server implements OptionsListener, RemoteServer {
     private Map<String,RemoteWorldImpl> remoteWorlds = new HashMap<String,RemoteWorldImpl>();
     private Map<String,RemoteGateImpl> remoteGates = new HashMap<String,RemoteGateImpl>();
 
+    // refreshData versioning, reset with every connection
+    private long refreshVersion = 0;                    // version of the last refreshData we sent
+    private Map<String,TypeMap> refreshSent = null;     // what the remote server has from us as of refreshVersion
+    private boolean remoteAcceptsDeltas = false;
+    private long remoteRefreshVersion = 0;              // version of the last refreshData we applied
+
     private long nextRequestId = 1;
     private Map<Long,Callback<TypeMap>> requests = new HashMap<Long,Callback<TypeMap>>();
 
@@ -538,16 +547,18 @@ public final class Server implements OptionsListener, RemoteServer {
 
     
     public void setSendChatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         sendChatFilter = s;
+        sendChatPattern = p;
     }
 
     
@@ -557,16 +568,18 @@ public final class Server implements OptionsListener, RemoteServer {
 
     
     public void setSendChatFormatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         sendChatFormatFilter = s;
+        sendChatFormatPattern = p;
     }
 
     
@@ -586,16 +599,18 @@ public final class Server implements OptionsListener, RemoteServer {
 
     
     public void setReceiveChatFilter(String s) {
+        Pattern p = null;
         if (s != null) {
             if (s.isEmpty() || s.equals("-")) s = null;
             else
                 try {
-                    Pattern.compile(s);
+                    p = Patterns.compile(s);
                 } catch (PatternSyntaxException e) {
                     throw new IllegalArgumentException("invalid regular expression");
                 }
         }
         receiveChatFilter = s;
+        receiveChatPattern = p;
     }
 
     
@@ -885,11 +900,14 @@ public final class Server implements OptionsListener, RemoteServer {
         return (limit >= 0) && (connectionAttempts > limit);
     }
 
-    public void refresh() {
+    // A full refresh asks for everything, not just what changed since the last refreshData.
+    public void refresh(boolean full) {
         if (! isConnectionConnected())
             connect();
         else {
             TypeMap message = createMessage("refresh");
+            if ((! full) && (remoteRefreshVersion != 0))
+                message.put("sinceVersion", remoteRefreshVersion);
             sendMessage(message);
         }
     }
@@ -916,7 +934,7 @@ public final class Server implements OptionsListener, RemoteServer {
         return true;
     }
 
-    // Connection callbacks, called from main network thread.
+    // Connection callbacks, called from the network threads.
 
     // outbound connection
     public void onConnected(String version) {
@@ -929,6 +947,7 @@ public final class Server implements OptionsListener, RemoteServer {
         Utils.fire(new Runnable() {
             
             public void run() {
+                resetRefreshState();
                 receiveRefresh(null);
             }
         });
@@ -946,6 +965,7 @@ public final class Server implements OptionsListener, RemoteServer {
             clearRemotePlayers(true);
             remoteGates.clear();
             remoteWorlds.clear();
+            resetRefreshState();
         } else {
             reconnect();
             final Server me = this;
@@ -958,6 +978,7 @@ public final class Server implements OptionsListener, RemoteServer {
                     clearRemotePlayers(true);
                     remoteGates.clear();
                     remoteWorlds.clear();
+                    resetRefreshState();
                 }
             });
         }
@@ -986,19 +1007,19 @@ public final class Server implements OptionsListener, RemoteServer {
 
     public boolean canSendChat(String message, String format) {
         if ((! sendChat) || (message == null)) return false;
-        if (sendChatFilter != null)
-            if (! Pattern.compile(sendChatFilter).matcher(message).find()) return false;
-        if (sendChatFormatFilter != null) {
+        if (sendChatPattern != null)
+            if (! sendChatPattern.matcher(message).find()) return false;
+        if (sendChatFormatPattern != null) {
             if (format == null) return false;
-            if (! Pattern.compile(sendChatFormatFilter).matcher(format).find()) return false;
+            if (! sendChatFormatPattern.matcher(format).find()) return false;
         }
         return true;
     }
 
     public boolean canReceiveChat(String message) {
         if ((! receiveChat) || (message == null)) return false;
-        if (receiveChatFilter == null) return true;
-        return Pattern.compile(receiveChatFilter).matcher(message).find();
+        if (receiveChatPattern == null) return true;
+        return receiveChatPattern.matcher(message).find();
     }
 
     // Remote commands
@@ -1242,8 +1263,7 @@ public final class Server implements OptionsListener, RemoteServer {
         sendMessage(out);
 
         // setup delayed task to timeout the request on this side if we don't get a response
-        Utils.fireDelayed(new Runnable() {
-            
+        Timers.schedule("api request", new Runnable() {
             public void run() {
                 Callback<TypeMap> cb = requests.remove(rid);
                 if (cb != null) {
@@ -1335,14 +1355,17 @@ public final class Server implements OptionsListener, RemoteServer {
                     normalizedPrivateAddress.getAddress().getHostAddress() + ":" +
                     normalizedPrivateAddress.getPort());
 
+        // Snapshot everything the remote server needs to know about, keyed by kind and name
+        Map<String,TypeMap> snapshot = new HashMap<String,TypeMap>();
+
         // worlds
-        List<String> worlds = new ArrayList<String>();
-        for (World world : Global.plugin.getServer().getWorlds())
-            worlds.add(world.getName());
-        out.put("worlds", worlds);
+        for (World world : Global.plugin.getServer().getWorlds()) {
+            TypeMap wm = new TypeMap();
+            wm.put("name", world.getName());
+            snapshot.put("world:" + world.getName(), wm);
+        }
 
         // players
-        List<TypeMap> players = new ArrayList<TypeMap>();
         for (Player player : Global.plugin.getServer().getOnlinePlayers()) {
             TypeMap msg = new TypeMap();
             msg.put("name", player.getName());
@@ -1350,25 +1373,91 @@ public final class Server implements OptionsListener, RemoteServer {
             msg.put("worldName", player.getWorld().getName());
             msg.put("prefix", Chat.getPrefix(player));
             msg.put("suffix", Chat.getSuffix(player));
-            players.add(msg);
+            snapshot.put("player:" + player.getName(), msg);
         }
-        out.put("players", players);
 
         // gates
-        List<TypeMap> gates = new ArrayList<TypeMap>();
         for (LocalGateImpl gate : Gates.getLocalGates()) {
             TypeMap gm = new TypeMap();
             gm.put("type", gate.getType().toString());
             gm.put("name", gate.getLocalName());
             gm.put("hidden", gate.getHidden());
-            gates.add(gm);
+            snapshot.put("gate:" + gate.getLocalName(), gm);
+        }
+
+        // Only send what changed if the remote server has our last snapshot
+        long since;
+        if (message == null)
+            since = remoteAcceptsDeltas ? refreshVersion : 0;
+        else
+            since = message.getLong("sinceVersion", 0);
+        boolean delta = (refreshSent != null) && (since != 0) && (since == refreshVersion);
+
+        List<String> worlds = new ArrayList<String>();
+        List<TypeMap> players = new ArrayList<TypeMap>();
+        List<TypeMap> gates = new ArrayList<TypeMap>();
+        for (Map.Entry<String,TypeMap> entry : snapshot.entrySet()) {
+            if (delta && entry.getValue().equals(refreshSent.get(entry.getKey()))) continue;
+            addRefreshEntry(entry.getKey(), entry.getValue(), worlds, players, gates);
         }
+        out.put("worlds", worlds);
+        out.put("players", players);
         out.put("gates", gates);
 
+        if (delta) {
+            List<String> removedWorlds = new ArrayList<String>();
+            List<String> removedPlayers = new ArrayList<String>();
+            List<String> removedGates = new ArrayList<String>();
+            for (Map.Entry<String,TypeMap> entry : refreshSent.entrySet()) {
+                if (snapshot.containsKey(entry.getKey())) continue;
+                String key = entry.getKey();
+                String entryName = entry.getValue().getString("name");
+                if (key.startsWith("world:")) removedWorlds.add(entryName);
+                else if (key.startsWith("player:")) removedPlayers.add(entryName);
+                else if (key.startsWith("gate:")) removedGates.add(entryName);
+            }
+            out.put("removedWorlds", removedWorlds);
+            out.put("removedPlayers", removedPlayers);
+            out.put("removedGates", removedGates);
+            out.put("baseVersion", since);
+        }
+
+        refreshVersion++;
+        refreshSent = snapshot;
+        out.put("version", refreshVersion);
+
+        Utils.debug("sending %s refreshData v%d to '%s'", delta ? "delta" : "full", refreshVersion, getName());
         sendMessage(out);
     }
 
+    private void addRefreshEntry(String key, TypeMap entry, List<String> worlds, List<TypeMap> players, List<TypeMap> gates) {
+        if (key.startsWith("world:")) worlds.add(entry.getString("name"));
+        else if (key.startsWith("player:")) players.add(entry);
+        else if (key.startsWith("gate:")) gates.add(entry);
+    }
+
+    private void resetRefreshState() {
+        refreshVersion = 0;
+        refreshSent = null;
+        remoteAcceptsDeltas = false;
+        remoteRefreshVersion = 0;
+    }
+
+    // A full refreshData replaces everything we know about the remote server, a delta
+    // (one with a baseVersion) only carries what changed. Either way, anything that
+    // didn't change is left alone.
     private void receiveRefreshData(TypeMap message) throws ServerException {
+        boolean delta = message.containsKey("baseVersion");
+        if (delta && (message.getLong("baseVersion") != remoteRefreshVersion)) {
+            Utils.debug("received out of sequence refreshData from '%s', requesting a full refresh", getName());
+            remoteRefreshVersion = 0;
+            sendMessage(createMessage("refresh"));
+            return;
+        }
+        // only record the new version once everything has been applied, so a
+        // message that fails part way through leaves us asking for a full refresh
+        remoteRefreshVersion = 0;
+
         remotePublicAddress = message.getString("publicAddress");
         remoteServer = message.getString("server");
 //        if ((remoteServer != null) && (! remoteServer.equals(name)))
@@ -1392,8 +1481,18 @@ public final class Server implements OptionsListener, RemoteServer {
         Collection<String> worlds = message.getStringList("worlds");
         if (worlds == null)
             throw new ServerException("world list required");
-        remoteWorlds.clear();
+        Collection<String> removed;
+        if (delta)
+            removed = message.getStringList("removedWorlds");
+        else {
+            removed = new HashSet<String>(remoteWorlds.keySet());
+            removed.removeAll(worlds);
+        }
+        if (removed != null)
+            for (String worldName : removed)
+                remoteWorlds.remove(worldName);
         for (String worldName : worlds) {
+            if (remoteWorlds.containsKey(worldName)) continue;
             try {
                 RemoteWorldImpl world = new RemoteWorldImpl(this, worldName);
                 remoteWorlds.put(world.getName(), world);
@@ -1401,36 +1500,77 @@ public final class Server implements OptionsListener, RemoteServer {
                 Utils.warning("received bad world from '%s'", getName());
             }
         }
-        Utils.debug("received %d worlds from '%s'", remoteWorlds.size(), getName());
+        Utils.debug("received %d worlds from '%s'", worlds.size(), getName());
 
         // players
         Collection<TypeMap> players = message.getMapList("players");
         if (players == null)
             throw new ServerException("player list required");
-        clearRemotePlayers(false);
+        if (delta)
+            removed = message.getStringList("removedPlayers");
+        else {
+            removed = new HashSet<String>(remotePlayers.keySet());
+            for (TypeMap msg : players)
+                removed.remove(msg.getString("name"));
+        }
+        if (removed != null)
+            for (String playerName : removed)
+                removeRemotePlayer(playerName, false);
         for (TypeMap msg : players) {
             try {
-                RemotePlayerImpl player = new RemotePlayerImpl(this, msg.getString("name"), msg.getString("displayName"), msg.getString("worldName"), msg.getString("prefix"), msg.getString("suffix"));
+                RemotePlayerImpl player = remotePlayers.get(msg.getString("name"));
+                if (player != null) {
+                    player.setDisplayName(msg.getString("displayName"));
+                    player.setWorld(msg.getString("worldName"));
+                    player.setPrefix(msg.getString("prefix"));
+                    player.setSuffix(msg.getString("suffix"));
+                    continue;
+                }
+                player = new RemotePlayerImpl(this, msg.getString("name"), msg.getString("displayName"), msg.getString("worldName"), msg.getString("prefix"), msg.getString("suffix"));
                 addRemotePlayer(player, false);
             } catch (IllegalArgumentException iae) {
                 Utils.warning("received bad player from '%s'", getName());
             }
         }
-        Utils.debug("received %d players from '%s'", remotePlayers.size(), getName());
+        Utils.debug("received %d players from '%s'", players.size(), getName());
 
         // gates
         Collection<TypeMap> gates = message.getMapList("gates");
         if (gates == null)
             throw new ServerException("gate list required");
-        remoteGates.clear();
-        Gates.removeGatesForServer(this);
+        if (delta)
+            removed = message.getStringList("removedGates");
+        else {
+            removed = new HashSet<String>(remoteGates.keySet());
+            for (TypeMap gm : gates)
+                removed.remove(gm.getString("name"));
+        }
+        if (removed != null)
+            for (String gName : removed) {
+                RemoteGateImpl gate = remoteGates.remove(gName);
+                if (gate == null) continue;
+                try {
+                    Gates.remove(gate);
+                } catch (GateException ge) {}
+            }
         for (TypeMap gm : gates) {
             try {
                 String gTypeStr = gm.getString("type");
                 GateType gType = Utils.valueOf(GateType.class, gTypeStr);
                 String gName = gm.getString("name");
                 boolean gHidden = gm.getBoolean("hidden");
-                RemoteGateImpl gate = RemoteGateImpl.create(this, gType, gName, gHidden);
+                RemoteGateImpl gate = remoteGates.get(gName);
+                if (gate != null) {
+                    if (gate.getType() == gType) {
+                        gate.setHidden(gHidden);
+                        continue;
+                    }
+                    remoteGates.remove(gName);
+                    try {
+                        Gates.remove(gate);
+                    } catch (GateException ge) {}
+                }
+                gate = RemoteGateImpl.create(this, gType, gName, gHidden);
                 remoteGates.put(gate.getLocalName(), gate);
                 try {
                     Gates.add(gate, false);
@@ -1444,7 +1584,12 @@ public final class Server implements OptionsListener, RemoteServer {
                 Utils.warning("received bad gate from '%s'", getName());
             }
         }
-        Utils.debug("received %d gates from '%s'", remoteGates.size(), getName());
+        Utils.debug("received %d gates from '%s'", gates.size(), getName());
+
+        if (message.containsKey("version")) {
+            remoteAcceptsDeltas = true;
+            remoteRefreshVersion = message.getLong("version");
+        }
 
         if (! readyForAPI) {
             readyForAPI = true;
@@ -1935,7 +2080,7 @@ public final class Server implements OptionsListener, RemoteServer {
             if (items.length > 1)
                 for (int i = 1; i < items.length; i++) {
                     try {
-                        Pattern.compile(items[i]);
+                        Patterns.compile(items[i]);
                     } catch (PatternSyntaxException e) {
                         throw new IllegalArgumentException("invalid pattern: " + items[i]);
                     }
@@ -1995,11 +2140,11 @@ public final class Server implements OptionsListener, RemoteServer {
             Set<Pattern> patterns = new HashSet<Pattern>();
             String items[] = patternMap.split("/");
             if (items.length == 1)
-                patterns.add(Pattern.compile(".*"));
+                patterns.add(Patterns.compile(".*"));
             else
                 for (int i = 1; i < items.length; i++) {
                     try {
-                        patterns.add(Pattern.compile(items[i]));
+                        patterns.add(Patterns.compile(items[i]));
                     } catch (PatternSyntaxException e) {
                         throw new IllegalArgumentException("invalid pattern: " + items[i]);
                     }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.GateMap.Bounds;
+import com.frdfsnlght.transporter.api.SpawnSearch;
+import java.util.Arrays;
+import java.util.Random;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+/**
+ * The blocks of an area gate that an arriving player can be spawned on.
+ * <p>
+ * The whole area is scanned once from chunk snapshots. For every block a
+ * random pick could start from, the block the vertical spawn search ends
+ * on is worked out ahead of time. Each end block is weighted by how many
+ * start blocks lead to it, so picking from this set gives the same
+ * spread of spawns as the search does. Columns are scanned again from the
+ * world when a picked block turns out to have changed.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class SpawnCells {
+
+    private final World world;
+    private final int minX, minY, minZ, maxY;
+    // number of start blocks in each direction
+    private final int sizeX, sizeY, sizeZ;
+    private final boolean spawnAir;
+    private final boolean spawnSolid;
+    private final boolean spawnLiquid;
+    private final SpawnSearch spawnSearch;
+
+    // per column, the y's a search ends on and the running total of start blocks that end on each
+    private final int[][] columnYs;
+    private final int[][] columnWeights;
+    // running total of the column weights
+    private final int[] totals;
+    private boolean totalsStale = true;
+
+    SpawnCells(World world, Bounds bounds, boolean spawnAir, boolean spawnSolid, boolean spawnLiquid, SpawnSearch spawnSearch) {
+        this.world = world;
+        minX = bounds.min.x;
+        minY = bounds.min.y;
+        minZ = bounds.min.z;
+        maxY = bounds.max.y;
+        // the search never starts on the max corner unless the gate is one block across
+        sizeX = Math.max(1, bounds.sizeX());
+        sizeY = Math.max(1, bounds.sizeY());
+        sizeZ = Math.max(1, bounds.sizeZ());
+        this.spawnAir = spawnAir;
+        this.spawnSolid = spawnSolid;
+        this.spawnLiquid = spawnLiquid;
+        this.spawnSearch = spawnSearch;
+
+        columnYs = new int[sizeX * sizeZ][];
+        columnWeights = new int[sizeX * sizeZ][];
+        totals = new int[sizeX * sizeZ];
+        ChunkSnapshots snapshots = new ChunkSnapshots(world);
+        for (int c = 0; c < columnYs.length; c++)
+            scanColumn(c, snapshots);
+    }
+
+    // Returns the x, y, and z of a spawn block, or null if there aren't any.
+    int[] pick(Random random) {
+        if (totalsStale) {
+            int total = 0;
+            for (int c = 0; c < totals.length; c++) {
+                int[] weights = columnWeights[c];
+                if (weights.length > 0) total += weights[weights.length - 1];
+                totals[c] = total;
+            }
+            totalsStale = false;
+        }
+        if ((totals.length == 0) || (totals[totals.length - 1] == 0)) return null;
+        int r = random.nextInt(totals[totals.length - 1]);
+        int c = firstAbove(totals, r);
+        if (c > 0) r -= totals[c - 1];
+        int y = columnYs[c][firstAbove(columnWeights[c], r)];
+        return new int[] { minX + (c / sizeZ), y, minZ + (c % sizeZ) };
+    }
+
+    // Checks a picked block against the world as it is now.
+    boolean isValid(int[] cell) {
+        int x = cell[0], y = cell[1], z = cell[2];
+        return isGood(typeAt(null, x, y - 1, z), typeAt(null, x, y, z), typeAt(null, x, y + 1, z), y);
+    }
+
+    // Scans the picked block's column again from the world.
+    void rescan(int[] cell) {
+        scanColumn(((cell[0] - minX) * sizeZ) + (cell[2] - minZ), null);
+        totalsStale = true;
+    }
+
+    // Blocks are read from the snapshots if given, otherwise from the world.
+    private void scanColumn(int c, ChunkSnapshots snapshots) {
+        int x = minX + (c / sizeZ);
+        int z = minZ + (c % sizeZ);
+
+        // the search can look one block past either end of the area
+        int lowY = minY - 1, highY = maxY + 1;
+        int[] types = new int[(highY - lowY) + 3];
+        for (int i = 0; i < types.length; i++)
+            types[i] = typeAt(snapshots, x, (lowY - 1) + i, z);
+        boolean[] good = new boolean[(highY - lowY) + 1];
+        for (int i = 0; i < good.length; i++)
+            good[i] = isGood(types[i], types[i + 1], types[i + 2], lowY + i);
+
+        // nearest good block at or below, and at or above, each y inside the area
+        int[] down = new int[good.length];
+        int[] up = new int[good.length];
+        int last = Integer.MIN_VALUE;
+        for (int y = minY; y <= maxY; y++) {
+            if (good[y - lowY]) last = y;
+            down[y - lowY] = last;
+        }
+        last = Integer.MAX_VALUE;
+        for (int y = maxY; y >= minY; y--) {
+            if (good[y - lowY]) last = y;
+            up[y - lowY] = last;
+        }
+
+        int[] ends = new int[sizeY];
+        int count = 0;
+        for (int i = 0; i < sizeY; i++) {
+            int y = search(minY + i, good, down, up, lowY);
+            ends[i] = y;
+            if (y != Integer.MIN_VALUE) count++;
+        }
+        Arrays.sort(ends);
+
+        int[] ys = new int[count];
+        int[] weights = new int[count];
+        int n = 0, total = 0;
+        for (int y : ends) {
+            if (y == Integer.MIN_VALUE) continue;
+            total++;
+            if ((n > 0) && (ys[n - 1] == y))
+                weights[n - 1] = total;
+            else {
+                ys[n] = y;
+                weights[n] = total;
+                n++;
+            }
+        }
+        columnYs[c] = Arrays.copyOf(ys, n);
+        columnWeights[c] = Arrays.copyOf(weights, n);
+    }
+
+    // Returns the y the spawn search starting at y ends on, or MIN_VALUE if it fails.
+    private int search(int y, boolean[] good, int[] down, int[] up, int lowY) {
+        switch (spawnSearch) {
+            case DOWN:
+            case DOWNUP:
+                if (down[y - lowY] != Integer.MIN_VALUE) return down[y - lowY];
+                if (spawnSearch != SpawnSearch.DOWNUP) break;
+                // turns around just below the area and starts back up one above it
+                y = minY + 1;
+                if (y > maxY) return good[y - lowY] ? y : Integer.MIN_VALUE;
+                if (up[y - lowY] != Integer.MAX_VALUE) return up[y - lowY];
+                break;
+            case UP:
+            case UPDOWN:
+                if (up[y - lowY] != Integer.MAX_VALUE) return up[y - lowY];
+                if (spawnSearch != SpawnSearch.UPDOWN) break;
+                y = maxY - 1;
+                if (y < minY) return good[y - lowY] ? y : Integer.MIN_VALUE;
+                if (down[y - lowY] != Integer.MIN_VALUE) return down[y - lowY];
+                break;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    // Can a player stand with their feet in the middle block?
+    private boolean isGood(int belowType, int footType, int headType, int y) {
+        Material foot = Material.getMaterial(footType);
+        Material head = Material.getMaterial(headType);
+        boolean good = false;
+        if ((foot == Material.AIR) && (head == Material.AIR))
+            good = true;
+        else if (spawnSolid && (isSolid(foot) || isSolid(head)))
+            good = true;
+        else if (spawnLiquid &&
+                (
+                    (isLiquid(foot) && (! isSolid(head))) ||
+                    (isLiquid(head) && (! isSolid(foot)))
+                ))
+            good = true;
+
+        // check for air block under player
+        if (good && (! spawnAir)) {
+            if ((y == 0) || (Material.getMaterial(belowType) == Material.AIR))
+                good = false;
+        }
+        return good;
+    }
+
+    private int typeAt(ChunkSnapshots snapshots, int x, int y, int z) {
+        if (snapshots != null) return snapshots.getTypeId(x, y, z);
+        if ((y < 0) || (y >= world.getMaxHeight())) return 0;
+        return world.getBlockTypeIdAt(x, y, z);
+    }
+
+    private static boolean isSolid(Material m) {
+        return (! isLiquid(m)) &&
+               (m != Material.AIR) &&
+               (m != Material.WEB);
+    }
+
+    private static boolean isLiquid(Material m) {
+        return (m == Material.WATER) ||
+               (m == Material.STATIONARY_WATER) ||
+               (m == Material.LAVA) ||
+               (m == Material.STATIONARY_LAVA);
+    }
+
+    // Returns the index of the first value greater than the key in an ascending array.
+    private static int firstAbove(int[] values, int key) {
+        int lo = 0, hi = values.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] > key) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+}
@@ -29,6 +29,12 @@ import org.bukkit.plugin.Plugin;
 import org.mcsg.double0negative.tabapi.TabAPI;
 
 /**
+ * Shows the server and player lists in each player's tab list.
+ * <p>
+ * Update requests from any thread are collected and rendered once on the
+ * next tick. The cells last sent to each player are remembered so only
+ * cells that changed are sent again.
+ * </p>
  *
  * @author frdfsnlght <frdfsnlght@gmail.com>
  */
@@ -59,31 +65,34 @@ public final class TabList {
 
     private static TabAPI tabAPIPlugin = null;
 
+    // guards the pending update state
+    private static final Object lock = new Object();
+    private static boolean allPending = false;
+    private static final Set<Player> pendingPlayers = new HashSet<Player>();
+    private static boolean scheduled = false;
+
+    // only used on the main thread
+    private static final Map<String,TabListCell[]> sentCells = new HashMap<String,TabListCell[]>();
+    private static final Map<String,String> colorized = new HashMap<String,String>();
 
     // can be called from any thread
     public static void updateAll() {
         if (! tabAPIAvailable()) return;
-        if (Utils.isMainThread())
-            updateAllNow();
-        else
-            Utils.fire(new Runnable() {
-                public void run() {
-                    updateAllNow();
-                }
-            });
+        synchronized (lock) {
+            allPending = true;
+            pendingPlayers.clear();
+            schedule();
+        }
     }
 
     // can be called from any thread
-    public static void updatePlayer(final Player player) {
+    // Sends the player every cell, not just the ones that changed.
+    public static void updatePlayer(Player player) {
         if (! tabAPIAvailable()) return;
-        if (Utils.isMainThread())
-            updatePlayerNow(player);
-        else
-            Utils.fire(new Runnable() {
-                public void run() {
-                    updatePlayerNow(player);
-                }
-            });
+        synchronized (lock) {
+            pendingPlayers.add(player);
+            schedule();
+        }
     }
 
     // called from main thread
@@ -92,7 +101,8 @@ public final class TabList {
         Utils.fireDelayed(new Runnable() {
             public void run() {
                 TabAPI.setPriority(Global.plugin, player, getPriority());
-                updateAllNow();
+                sentCells.remove(player.getName());
+                updateAll();
             }
         }, 500);
     }
@@ -101,13 +111,24 @@ public final class TabList {
     public static void stopPlayer(Player player) {
         if (! tabAPIAvailable()) return;
         TabAPI.setPriority(Global.plugin, player, -2);
+        sentCells.remove(player.getName());
         Utils.fireDelayed(new Runnable() {
             public void run() {
-                updateAllNow();
+                updateAll();
             }
         }, 500);
     }
 
+    // must be called while holding lock
+    private static void schedule() {
+        if (scheduled) return;
+        scheduled = Utils.fire(new Runnable() {
+            public void run() {
+                render();
+            }
+        }) != -1;
+    }
+
     private static boolean tabAPIAvailable() {
         if (! Config.getUseTabAPI()) return false;
         Plugin p = Global.plugin.getServer().getPluginManager().getPlugin("TabAPI");
@@ -118,15 +139,27 @@ public final class TabList {
         return true;
     }
 
-    private static void updateAllNow() {
-        List<TabListCell> screen = generateScreen();
-        for (Player player : Global.plugin.getServer().getOnlinePlayers())
-            sendScreenToPlayer(screen, player);
-    }
-
-    private static void updatePlayerNow(Player player) {
-        List<TabListCell> screen = generateScreen();
-        sendScreenToPlayer(screen, player);
+    private static void render() {
+        boolean all;
+        List<Player> players;
+        synchronized (lock) {
+            scheduled = false;
+            all = allPending;
+            allPending = false;
+            players = new ArrayList<Player>(pendingPlayers);
+            pendingPlayers.clear();
+        }
+        if ((! all) && players.isEmpty()) return;
+        TabListCell[] grid = toGrid(generateScreen());
+        for (Player player : players) {
+            if (! player.isOnline()) continue;
+            sentCells.remove(player.getName());
+            if (! all)
+                sendScreenToPlayer(grid, player);
+        }
+        if (all)
+            for (Player player : Global.plugin.getServer().getOnlinePlayers())
+                sendScreenToPlayer(grid, player);
     }
 
     /* Begin options */
@@ -298,17 +331,53 @@ public final class TabList {
         return false;
     }
 
-    private static void sendScreenToPlayer(List<TabListCell> screen, Player player) {
+    // Returns the cells indexed by position, leaving out any that don't fit.
+    private static TabListCell[] toGrid(List<TabListCell> screen) {
+        int width = TabAPI.getHorizSize();
+        TabListCell[] grid = new TabListCell[width * TabAPI.getVertSize()];
         for (TabListCell cell : screen) {
-            if (cell.y < TabAPI.getVertSize())
-                TabAPI.setTabString(Global.plugin, player, cell.y, cell.x, cell.content, cell.ping);
+            int i = (cell.y * width) + cell.x;
+            if (i < grid.length)
+                grid[i] = cell;
+        }
+        return grid;
+    }
+
+    // Cells the player hasn't been sent are left alone, like they always were.
+    private static void sendScreenToPlayer(TabListCell[] grid, Player player) {
+        TabListCell[] sent = sentCells.get(player.getName());
+        if ((sent == null) || (sent.length != grid.length)) {
+            sent = new TabListCell[grid.length];
+            sentCells.put(player.getName(), sent);
+        }
+        boolean changed = false;
+        for (int i = 0; i < grid.length; i++) {
+            TabListCell cell = grid[i];
+            if (cell == null) continue;
+            TabListCell old = sent[i];
+            if ((old != null) && (old.ping == cell.ping) && old.content.equals(cell.content)) continue;
+            TabAPI.setTabString(Global.plugin, player, cell.y, cell.x, cell.content, cell.ping);
+            sent[i] = cell;
+            changed = true;
+        }
+        if (changed)
+            TabAPI.updatePlayer(player);
+    }
+
+    // Formats rarely change, so their colorized versions are kept.
+    private static String colorize(String format) {
+        String s = colorized.get(format);
+        if (s == null) {
+            if (colorized.size() >= 1024) colorized.clear();
+            s = Chat.colorize(format);
+            colorized.put(format, s);
         }
-		TabAPI.updatePlayer(player);
+        return s;
     }
 
     private static int setCells(List<TabListCell> screen, int pos, String format, int ping) {
         if (format == null) return pos;
-        format = Chat.colorize(format);
+        format = colorize(format);
         for (StringTokenizer lineTokens = new StringTokenizer(format, "$"); lineTokens.hasMoreTokens(); ) {
             String line = lineTokens.nextToken();
             for (StringTokenizer columnTokens = new StringTokenizer(line, "|"); columnTokens.hasMoreTokens(); ) {
@@ -351,7 +420,7 @@ public final class TabList {
             format = format.replace("%server%", n);
             if (connected)
                 format = format.replace("%players%", players + "");
-            format = Chat.colorize(format);
+            format = colorize(format);
             if (format.length() <= 13)
                 return setCells(screen, pos, format, connected ? 0 : -1);
             n = n.substring(0, n.length() - 3) + "..";
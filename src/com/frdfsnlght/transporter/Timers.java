@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A hashed timer wheel for delayed tasks on the main thread.
+ * <p>
+ * A single repeating scheduler task turns the wheel once a tick, so
+ * pending timeouts don't each need their own Bukkit task. Scheduling and
+ * cancelling a timer take constant time. Timers scheduled from other
+ * threads are added to the wheel on the main thread, and should only be
+ * cancelled from the main thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class Timers {
+
+    // ticks per turn of the wheel, must be a power of 2
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+    private static final long TICK_MILLIS = 50;
+
+    private static final Timer[] wheel = new Timer[WHEEL_SIZE];
+    private static long currentTick = 0;
+    private static int pending = 0;
+    // pending timers by kind
+    private static final Map<String,int[]> kinds = new TreeMap<String,int[]>();
+    private static int taskId = -1;
+
+    // The kind is only used to count pending timers.
+    // delay is millis, rounded down to ticks like Utils.fireDelayed
+    public static Timer schedule(String kind, Runnable task, long delay) {
+        final Timer timer = new Timer(kind, task);
+        if (! Global.enabled) return timer;
+        final long ticks = Math.max(1, delay / TICK_MILLIS);
+        if (Utils.isMainThread())
+            add(timer, ticks);
+        else
+            Utils.fire(new Runnable() {
+                public void run() {
+                    if (! timer.cancelled) add(timer, ticks);
+                }
+            });
+        return timer;
+    }
+
+    public static int getPendingCount() {
+        return pending;
+    }
+
+    public static Map<String,Integer> getPendingCounts() {
+        Map<String,Integer> counts = new TreeMap<String,Integer>();
+        for (Map.Entry<String,int[]> entry : kinds.entrySet())
+            if (entry.getValue()[0] > 0)
+                counts.put(entry.getKey(), entry.getValue()[0]);
+        return counts;
+    }
+
+    private static void add(Timer timer, long ticks) {
+        timer.deadline = currentTick + ticks;
+        timer.slot = (int)(timer.deadline & MASK);
+        timer.next = wheel[timer.slot];
+        if (timer.next != null) timer.next.prev = timer;
+        wheel[timer.slot] = timer;
+        pending++;
+        int[] count = kinds.get(timer.kind);
+        if (count == null) {
+            count = new int[1];
+            kinds.put(timer.kind, count);
+        }
+        count[0]++;
+        if (taskId == -1)
+            taskId = Global.plugin.getServer().getScheduler().scheduleSyncRepeatingTask(Global.plugin, new Runnable() {
+                public void run() {
+                    tick();
+                }
+            }, 1, 1);
+    }
+
+    // Forgets all pending timers without running them.
+    public static void stop() {
+        if (taskId != -1) {
+            Utils.cancelTask(taskId);
+            taskId = -1;
+        }
+        for (int i = 0; i < wheel.length; i++) {
+            for (Timer t = wheel[i]; t != null; t = t.next)
+                t.slot = -1;
+            wheel[i] = null;
+        }
+        pending = 0;
+        kinds.clear();
+    }
+
+    private static void tick() {
+        currentTick++;
+        int slot = (int)(currentTick & MASK);
+        List<Timer> due = null;
+        for (Timer t = wheel[slot]; t != null; ) {
+            Timer next = t.next;
+            if (t.deadline <= currentTick) {
+                t.unlink();
+                if (due == null) due = new ArrayList<Timer>();
+                due.add(t);
+            }
+            t = next;
+        }
+        if (due != null)
+            for (Timer t : due) {
+                // an earlier task might have cancelled this one
+                if (t.cancelled) continue;
+                try {
+                    t.task.run();
+                } catch (Throwable e) {
+                    Utils.severe(e, "timer task failed:");
+                }
+            }
+        if ((pending == 0) && (taskId != -1)) {
+            Utils.cancelTask(taskId);
+            taskId = -1;
+        }
+    }
+
+    public static final class Timer {
+
+        private final String kind;
+        private final Runnable task;
+        private long deadline;
+        private int slot = -1;
+        private Timer prev = null;
+        private Timer next = null;
+        private boolean cancelled = false;
+
+        private Timer(String kind, Runnable task) {
+            this.kind = kind;
+            this.task = task;
+        }
+
+        public boolean isPending() {
+            return slot != -1;
+        }
+
+        // Returns true if the timer was pending.
+        public boolean cancel() {
+            cancelled = true;
+            if (slot == -1) return false;
+            unlink();
+            return true;
+        }
+
+        private void unlink() {
+            if (prev != null)
+                prev.next = next;
+            else
+                wheel[slot] = next;
+            if (next != null)
+                next.prev = prev;
+            prev = next = null;
+            slot = -1;
+            pending--;
+            kinds.get(kind)[0]--;
+        }
+
+    }
+
+}
@@ -184,6 +184,12 @@ public class Transporter extends JavaPlugin {
         Network.stop(ctx);
         Config.save(ctx);
         Gates.save(ctx);
+        Markers.flush();
+        Persister.stop();
+        GateStore.closeAll();
+        ChunkPreloader.clear();
+        MoveCache.clear();
+        Timers.stop();
         ctx.sendLog("disabled");
         Global.plugin = null;
     }
@@ -247,6 +247,28 @@ public class Utils {
         });
     }
 
+    // Writes the data to a temporary file and renames it over the file, so
+    // readers never see a partly written file.
+    public static void writeFileAtomically(File file, byte[] data) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (! parent.exists())
+            parent.mkdirs();
+        File tmpFile = new File(parent, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (! tmpFile.renameTo(file)) {
+            // some platforms won't rename over an existing file, or one that's still mapped
+            file.delete();
+            if (! tmpFile.renameTo(file))
+                throw new IOException("unable to rename " + tmpFile.getAbsolutePath());
+        }
+    }
+
     public static float directionToYaw(BlockFace direction) {
         if (direction == null) return 0;
         switch (direction) {
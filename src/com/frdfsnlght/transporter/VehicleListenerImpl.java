@@ -21,6 +21,7 @@ import org.bukkit.entity.Vehicle;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.vehicle.VehicleDestroyEvent;
 import org.bukkit.event.vehicle.VehicleMoveEvent;
 
 /**
@@ -32,11 +33,14 @@ public class VehicleListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onVehicleMove(VehicleMoveEvent event) {
         Vehicle vehicle = event.getVehicle();
+        if (MoveCache.canSkip(vehicle, event.getTo())) return;
         LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
         if (fromGate == null) {
             ReservationImpl.removeGateLock(vehicle);
+            MoveCache.setClear(vehicle, ! ReservationImpl.isGateLocked(vehicle));
             return;
         }
+        MoveCache.setClear(vehicle, false);
         if (ReservationImpl.isGateLocked(vehicle)) return;
 
         try {
@@ -51,4 +55,9 @@ public class VehicleListenerImpl implements Listener {
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleDestroy(VehicleDestroyEvent event) {
+        MoveCache.remove(event.getVehicle());
+    }
+
 }
@@ -18,6 +18,7 @@ package com.frdfsnlght.transporter;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 
@@ -39,8 +40,22 @@ public class WorldListenerImpl implements Listener {
     public void onWorldUnload(WorldUnloadEvent event) {
         Utils.debug("world '%s' unloaded", event.getWorld().getName());
         Gates.removeGatesForWorld(event.getWorld());
+        ChunkPreloader.removeWorld(event.getWorld());
+        MoveCache.removeWorld(event.getWorld());
         for (Server server : Servers.getAll())
             server.sendWorldUnload(event.getWorld());
     }
 
+    @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        // keep chunks loaded for expected arrivals
+        if (ChunkPreloader.isPinned(event.getChunk()))
+            event.setCancelled(true);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnloaded(ChunkUnloadEvent event) {
+        MoveCache.removeChunk(event.getChunk());
+    }
+
 }
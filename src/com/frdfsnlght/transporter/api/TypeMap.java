@@ -30,8 +30,12 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 
@@ -42,7 +46,7 @@ import org.yaml.snakeyaml.Yaml;
 public final class TypeMap extends HashMap<String,Object> implements Cloneable {
 
     public static TypeMap decode(String encoded) {
-        return (TypeMap)decodeObject(new StringBuilder(encoded));
+        return (TypeMap)decodeObject(new Cursor(encoded));
     }
 
     public static TypeMap decodeJSON(String encoded) {
@@ -64,13 +68,15 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
     }
 
-    private static Object decodeObject(StringBuilder b) {
+    private static Object decodeObject(Cursor b) {
         //if (b.length() == 0) return null;   // to fix StringIndexOutOfBoundsException?
-        char type = b.charAt(0);
-        b.delete(0, 2);
-        int pos = b.indexOf(":");
-        int len = Integer.parseInt(b.substring(0, pos));
-        b.delete(0, pos + 1);
+        char type = b.str.charAt(b.pos);
+        b.pos += 2;
+        int pos = b.str.indexOf(':', b.pos);
+        if (pos == -1)
+            throw new StringIndexOutOfBoundsException("missing length at " + b.pos);
+        int len = Integer.parseInt(b.str.substring(b.pos, pos));
+        b.pos = pos + 1;
         switch (type) {
             case 'n':
 //System.out.println("decoded null");
@@ -108,10 +114,9 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "s:" + v.length() + ":" + v;
     }
 
-    private static String decodeString(StringBuilder b, int len) {
+    private static String decodeString(Cursor b, int len) {
 //System.out.print("decode string (" + len + "): ");
-        String str = b.substring(0, len);
-        b.delete(0, len);
+        String str = b.next(len);
         try {
             String s = URLDecoder.decode(str, "UTF-8");
 //System.out.println(s);
@@ -131,9 +136,8 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "b:" + s.length() + ":" + s;
     }
 
-    private static Boolean decodeBoolean(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Boolean decodeBoolean(Cursor b, int len) {
+        String str = b.next(len);
         Boolean bool = Boolean.parseBoolean(str);
 //System.out.println("decode boolean: " + bool);
         return bool;
@@ -148,9 +152,8 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "l:" + s.length() + ":" + s;
     }
 
-    private static Long decodeLong(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Long decodeLong(Cursor b, int len) {
+        String str = b.next(len);
         Long l = Long.parseLong(str);
 //System.out.println("decode long: " + l);
         return l;
@@ -165,9 +168,8 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "d:" + s.length() + ":" + s;
     }
 
-    private static Double decodeDouble(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Double decodeDouble(Cursor b, int len) {
+        String str = b.next(len);
         Double d = Double.parseDouble(str);
 //System.out.println("decode double: " + d);
         return d;
@@ -187,7 +189,7 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return buf.toString();
     }
 
-    private static TypeMap decodeMap(StringBuilder b, int len) {
+    private static TypeMap decodeMap(Cursor b, int len) {
 //System.out.println("decode message (" + len + ")");
         TypeMap m = new TypeMap();
         for (int i = 0; i < len; i++) {
@@ -216,7 +218,7 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return buf.toString();
     }
 
-    private static List<Object> decodeList(StringBuilder b, int len) {
+    private static List<Object> decodeList(Cursor b, int len) {
 //System.out.println("decode list (" + len + ")");
         List<Object> l = new ArrayList<Object>();
         for (int i = 0; i < len; i++) {
@@ -280,7 +282,7 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
             TypeMap map = new TypeMap();
             for (String k : ((TypeMap)val).keySet())
                 map.put(k, cloneValue(((TypeMap)val).get(k)));
-            return val;
+            return map;
         }
         if (val instanceof Map) {
             TypeMap child = new TypeMap();
@@ -288,21 +290,52 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
                 child.put(k.toString(), cloneValue(((Map)val).get(k)));
             return child;
         }
-        if (val instanceof List) {
-            for (int i = 0; i < ((List)val).size(); i++)
-                ((List)val).set(i, cloneValue(((List)val).get(i)));
-            return val;
-        }
         if (val instanceof Collection) {
-            Object[] vals = ((Collection)val).toArray();
-            ((Collection)val).clear();
-            for (Object v : vals)
-                ((Collection)val).add(cloneValue(v));
-            return val;
+            Collection<Object> copy = newCollection((Collection)val);
+            for (Object v : (Collection)val)
+                copy.add(cloneValue(v));
+            return copy;
         }
         return val;
     }
 
+    // Returns an empty collection of the same kind as the one given.
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> newCollection(Collection val) {
+        // keep the ordering of sorted sets
+        if (val instanceof SortedSet)
+            return new TreeSet<Object>(((SortedSet)val).comparator());
+        try {
+            return (Collection<Object>)val.getClass().newInstance();
+        } catch (InstantiationException e) {
+        } catch (IllegalAccessException e) {}
+        if (val instanceof Set)
+            return new LinkedHashSet<Object>(val.size());
+        return new ArrayList<Object>(val.size());
+    }
+
+    // Read position within an encoded string, so decoding doesn't have to keep copying the remainder.
+    private static final class Cursor {
+        final String str;
+        int pos = 0;
+        Cursor(String str) {
+            this.str = str;
+        }
+        String next(int len) {
+            String s = str.substring(pos, pos + len);
+            pos += len;
+            return s;
+        }
+    }
+
+    // Yaml instances aren't thread safe, but are fine to reuse, and files are loaded from several threads.
+    private static final ThreadLocal<Yaml> loaders = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return new Yaml();
+        }
+    };
+
     private File file = null;
 
     public TypeMap() {}
@@ -339,8 +372,7 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         InputStream input = null;
         try {
             input = new FileInputStream(file);
-            Yaml yaml = new Yaml();
-            Object o = yaml.load(input);
+            Object o = loaders.get().load(input);
             if (! (o instanceof Map)) return;
             for (Object k : ((Map)o).keySet())
                 set(k.toString(), ((Map)o).get(k));
@@ -376,6 +408,15 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         }
     }
 
+    // Returns the YAML that save() would write.
+    public String dump() {
+        DumperOptions options = new DumperOptions();
+        //options.setAllowUnicode(true);
+        options.setIndent(4);
+        Yaml yaml = new Yaml(options);
+        return yaml.dump(this);
+    }
+
     public String encode() {
         return encodeMap(this);
     }
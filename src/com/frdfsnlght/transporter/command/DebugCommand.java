@@ -17,11 +17,15 @@ package com.frdfsnlght.transporter.command;
 
 import com.frdfsnlght.transporter.Context;
 import com.frdfsnlght.transporter.Gates;
+import com.frdfsnlght.transporter.MoveCache;
+import com.frdfsnlght.transporter.Patterns;
 import com.frdfsnlght.transporter.PlayerListenerImpl;
+import com.frdfsnlght.transporter.Timers;
 import com.frdfsnlght.transporter.Utils;
 import com.frdfsnlght.transporter.api.TransporterException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import org.bukkit.command.Command;
 
 /**
@@ -42,8 +46,12 @@ public class DebugCommand extends TrpCommandProcessor {
     public List<String> getUsage(Context ctx) {
         if (! ctx.isConsole()) return null;
         List<String> cmds = new ArrayList<String>();
-        if (ctx.isConsole())
+        if (ctx.isConsole()) {
             cmds.add(getPrefix(ctx) + GROUP + "submit <id>");
+            cmds.add(getPrefix(ctx) + GROUP + "timers");
+            cmds.add(getPrefix(ctx) + GROUP + "moves");
+            cmds.add(getPrefix(ctx) + GROUP + "patterns");
+        }
         if (ctx.isPlayer())
             cmds.add(getPrefix(ctx) + GROUP + "interact");
         return cmds;
@@ -84,6 +92,34 @@ public class DebugCommand extends TrpCommandProcessor {
             return;
         }
 
+        if ("timers".startsWith(subCmd)) {
+            if (! ctx.isConsole())
+                throw new CommandException("this command is only available on the console");
+            ctx.send("%d pending timers", Timers.getPendingCount());
+            for (Map.Entry<String,Integer> entry : Timers.getPendingCounts().entrySet())
+                ctx.send("  %s: %d", entry.getKey(), entry.getValue());
+            return;
+        }
+
+        if ("moves".startsWith(subCmd)) {
+            if (! ctx.isConsole())
+                throw new CommandException("this command is only available on the console");
+            long fast = MoveCache.getFastMoves();
+            long slow = MoveCache.getSlowMoves();
+            long total = fast + slow;
+            ctx.send("%d moves checked, %d skipped (%d%%), %d entities tracked",
+                    total, fast, (total == 0) ? 0 : (fast * 100) / total, MoveCache.size());
+            return;
+        }
+
+        if ("patterns".startsWith(subCmd)) {
+            if (! ctx.isConsole())
+                throw new CommandException("this command is only available on the console");
+            ctx.send("%d cached patterns, %d hits, %d misses",
+                    Patterns.size(), Patterns.getHits(), Patterns.getMisses());
+            return;
+        }
+
         if ("gatemaps".startsWith(subCmd)) {
             Gates.dumpMaps();
             return;
@@ -43,6 +43,7 @@ public class NetworkCommand  extends TrpCommandProcessor {
         cmds.add(getPrefix(ctx) + GROUP + "ban add <pattern>");
         cmds.add(getPrefix(ctx) + GROUP + "ban remove <pattern>|*");
         cmds.add(getPrefix(ctx) + GROUP + "ban list");
+        cmds.add(getPrefix(ctx) + GROUP + "status");
         cmds.add(getPrefix(ctx) + GROUP + "get <option>|*");
         cmds.add(getPrefix(ctx) + GROUP + "set <option> <value>");
 
@@ -76,6 +77,12 @@ public class NetworkCommand  extends TrpCommandProcessor {
             return;
         }
 
+        if ("status".startsWith(subCmd)) {
+            Permissions.require(ctx.getPlayer(), "trp.network.status");
+            Network.getStatus(ctx);
+            return;
+        }
+
         if ("ban".startsWith(subCmd)) {
             if (args.isEmpty())
                 throw new CommandException("do what with bans?");
@@ -21,6 +21,7 @@ import com.frdfsnlght.transporter.Realm;
 import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Servers;
 import com.frdfsnlght.transporter.api.TransporterException;
+import com.frdfsnlght.transporter.net.Connection;
 import com.frdfsnlght.transporter.net.Network;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -52,7 +53,7 @@ public class ServerCommand extends TrpCommandProcessor {
         cmds.add(getPrefix(ctx) + GROUP + "enable <server>");
         cmds.add(getPrefix(ctx) + GROUP + "disable <server>");
         cmds.add(getPrefix(ctx) + GROUP + "ping <server>");
-        cmds.add(getPrefix(ctx) + GROUP + "refresh <server>");
+        cmds.add(getPrefix(ctx) + GROUP + "refresh <server> [full]");
         cmds.add(getPrefix(ctx) + GROUP + "remove <server>");
         cmds.add(getPrefix(ctx) + GROUP + "exec <server> <cmd> [<args>]");
         cmds.add(getPrefix(ctx) + GROUP + "mexec <cmd> [<args>]");
@@ -121,6 +122,13 @@ public class ServerCommand extends TrpCommandProcessor {
                         ctx.send("    remoteBungeeServer:   %s",
                                 (server.getRemoteBungeeServer() == null) ?
                                     "-" : server.getRemoteBungeeServer());
+                        Connection conn = server.getConnection();
+                        ctx.send("    writeQueue:           %d (max %d), %d bytes in %d writes (%d bytes/write)",
+                                conn.getWriteQueueDepth(),
+                                conn.getMaxWriteQueueDepth(),
+                                conn.getBytesWritten(),
+                                conn.getWriteCalls(),
+                                (conn.getWriteCalls() == 0) ? 0 : (conn.getBytesWritten() / conn.getWriteCalls()));
                     }
                 }
             }
@@ -241,6 +249,11 @@ public class ServerCommand extends TrpCommandProcessor {
         }
 
         if ("refresh".startsWith(subCmd)) {
+            boolean full = false;
+            if ((args.size() > 1) && "full".startsWith(args.get(args.size() - 1).toLowerCase())) {
+                full = true;
+                args.remove(args.size() - 1);
+            }
             if (args.isEmpty())
                 throw new CommandException("server name required");
             Server server = Servers.find(args.get(0));
@@ -250,8 +263,8 @@ public class ServerCommand extends TrpCommandProcessor {
             if (! server.isConnectionConnected())
                 ctx.sendLog("server '%s' is not connected", server.getName());
             else {
-                server.refresh();
-                ctx.sendLog("requested server refresh for '%s'", server.getName());
+                server.refresh(full);
+                ctx.sendLog("requested %sserver refresh for '%s'", full ? "full " : "", server.getName());
             }
             return;
         }
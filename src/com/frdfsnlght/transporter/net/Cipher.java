@@ -17,6 +17,7 @@
 package com.frdfsnlght.transporter.net;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.util.ArrayList;
 import java.util.List;
@@ -48,6 +49,10 @@ public final class Cipher {
     private static long randomSeed = 4587243876L;
     private static final List<Byte> scramble;
 
+    // Lookup tables built from scramble so update doesn't have to search it
+    private static final byte[] scrambleBytes = new byte[256];
+    private static final int[] scramblePositions = new int[256];
+
     static {
         List<Byte> seed = new ArrayList<Byte>(256);
         scramble = new ArrayList<Byte>(256);
@@ -56,6 +61,11 @@ public final class Cipher {
         while (seed.size() > 0)
             //scramble.add(seed.remove(random(seed.size())));
             scramble.add(seed.remove(0));
+        for (int i = 0; i < 256; i++) {
+            byte b = scramble.get(i);
+            scrambleBytes[i] = b;
+            scramblePositions[b & 0xff] = i;
+        }
     }
 
     // Use a custom random number generator because we can't rely on the
@@ -69,6 +79,7 @@ public final class Cipher {
     }
 
     private ByteArrayOutputStream buffer;
+    private Random padRandom;
     private int padSize;
     private int mode;
     private byte[] key;
@@ -198,7 +209,10 @@ public final class Cipher {
      * Resets the cipher, canceling any de/encryption currently in progress.
      */
     public void reset() {
-        buffer = new ByteArrayOutputStream();
+        if (buffer == null)
+            buffer = new ByteArrayOutputStream();
+        else
+            buffer.reset();
         keyIndex = 0;
         factor1 = factor2 = 0;
         mode = None;
@@ -234,8 +248,8 @@ public final class Cipher {
         if (mode == None)
             throw new IllegalStateException("encrypt/decrypt mode not set");
 
-        int posIn = scramble.indexOf(data);
-        int adj = scramble.indexOf(key[keyIndex++]);
+        int posIn = scramblePositions[data & 0xff];
+        int adj = scramblePositions[key[keyIndex++] & 0xff];
         if (keyIndex >= key.length) keyIndex = 0;
 
         factor1 = factor2 + adj;
@@ -246,15 +260,15 @@ public final class Cipher {
         else
             posOut = posIn - factor1;
 
-        posOut = (posOut % scramble.size());
-        if (posOut < 0) posOut += scramble.size();
+        posOut = (posOut % scrambleBytes.length);
+        if (posOut < 0) posOut += scrambleBytes.length;
 
         if (mode == Encrypt)
             factor2 = factor1 + posOut;
         else
             factor2 = factor1 + posIn;
 
-        buffer.write(scramble.get(posOut));
+        buffer.write(scrambleBytes[posOut]);
     }
 
     /**
@@ -275,10 +289,23 @@ public final class Cipher {
      */
     public void update(byte[] data, int offset, int length) {
         if (data == null) return;
-        for (int i = offset; i < (i + length); i++)
+        for (int i = offset; i < (offset + length); i++)
             update(data[i]);
     }
 
+    /**
+     * Updates the cipher stream with the remaining data in a buffer.
+     * <p>
+     * The buffer's position is advanced to its limit.
+     * </p>
+     * @param data the buffer containing the data
+     */
+    public void update(ByteBuffer data) {
+        if (data == null) return;
+        while (data.hasRemaining())
+            update(data.get());
+    }
+
     /**
      * Completes the de/encryption cycle, resets the cipher instance,
      * and returns the de/encrypted (cipher) data.
@@ -292,9 +319,9 @@ public final class Cipher {
                 if (mode == Encrypt) {
                     int extraBytes = padSize - ((buffer.size() + 4) % padSize);
                     if (extraBytes == padSize) extraBytes = 0;
-                    Random r = new Random();
+                    if (padRandom == null) padRandom = new Random();
                     for (int i = 0; i < extraBytes; i++)
-                        update((byte)(r.nextInt(256) + Byte.MIN_VALUE));
+                        update((byte)(padRandom.nextInt(256) + Byte.MIN_VALUE));
                     update((byte)((extraBytes >> 24) & 0x000000ff));
                     update((byte)((extraBytes >> 16) & 0x000000ff));
                     update((byte)((extraBytes >> 8) & 0x000000ff));
@@ -15,19 +15,26 @@
  */
 package com.frdfsnlght.transporter.net;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Formatter;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.frdfsnlght.transporter.Base64;
 import com.frdfsnlght.transporter.Global;
 import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Servers;
@@ -41,23 +48,69 @@ import com.frdfsnlght.transporter.Utils;
 public final class Connection {
 
     private static final int HANDSHAKE_TIMEOUT = 5000;
-    private static final int PROTOCOL_VERSION = 8;
+    private static final int PROTOCOL_VERSION = 9;
     public static final int PROTOCOL_TIMEOUT = 8000;    // 8 seconds
 
+    // Oldest protocol we still speak. This is what we advertise as protocolVersion so older peers,
+    // which require an exact match, still accept the handshake.
+    private static final int MIN_PROTOCOL_VERSION = 8;
+
+    // First protocol version that sends messages with MessageCodec
+    private static final int BINARY_PROTOCOL_VERSION = 9;
+
     private static final byte ENCRYPTED_FLAG = 0x01;
+    private static final byte BINARY_FLAG = 0x02;
+    private static final byte SESSION_FLAG = 0x04;
     private static final int CIPHER_PAD_SIZE = 256;
 
+    // Frames this size or smaller are held briefly so they can share a write with whatever follows them
+    private static final int COALESCE_SIZE = 256;
+
+    // Most frames handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    // Decoded frames kept for reuse, and the largest frame worth keeping
+    private static final int MAX_FREE_FRAMES = 16;
+    private static final int MAX_FREE_FRAME_SIZE = 65536;
+
     private SocketChannel channel;
     private String name = null;
     private Server server = null;
     private boolean incoming = false;
     private String connectAddress;
-    private State state = State.NONE;
+    private volatile State state = State.NONE;
+    private SelectorThread selectorThread = null;
     private long lastMessageSentTime = 0;
     private long lastMessageReceivedTime = 0;
-
-    private byte[] readBuffer = null;
-    private final List<byte[]> writeBuffers = new ArrayList<byte[]>();
+    private volatile int protocolVersion = MIN_PROTOCOL_VERSION;
+
+    private ByteBuffer readBuffer = null;
+
+    // Frames waiting to be decoded, drained in order by one decoder task at a time
+    private final Queue<Frame> inbound = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicBoolean decoding = new AtomicBoolean(false);
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<Frame>();
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger writeQueueDepth = new AtomicInteger();
+    private volatile int maxWriteQueueDepth = 0;
+    private volatile long writeCalls = 0;
+    private volatile long bytesWritten = 0;
+
+    // Frames taken off the queue but not completely written yet, only touched by the network thread
+    private final ByteBuffer[] pendingWrites = new ByteBuffer[MAX_GATHER];
+    private int pendingWriteCount = 0;
+
+    // Legacy ciphers are reused for every frame, sends can come from any thread so they lock sendCipher
+    private final Cipher sendCipher = new Cipher(CIPHER_PAD_SIZE);
+    private final Cipher receiveCipher = new Cipher(CIPHER_PAD_SIZE);
+    private String sendKeyString = null;
+    private byte[] sendKey = null;
+    private byte[] receiveKey = null;
+
+    // Set once both ends agree to use AES-GCM
+    private byte[] localNonce = null;
+    private volatile SessionCipher sendSession = null;
+    private volatile SessionCipher receiveSession = null;
 
     private int nextRequestId = 1;
     private final Map<Integer,Result> requests = new HashMap<Integer,Result>();
@@ -101,6 +154,10 @@ public final class Connection {
         return lastMessageReceivedTime;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
 
     @Override
     public String toString() {
@@ -117,6 +174,14 @@ public final class Connection {
         return connectAddress;
     }
 
+    SelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
+    void setSelectorThread(SelectorThread selectorThread) {
+        this.selectorThread = selectorThread;
+    }
+
     public void onOpening(SocketChannel channel) {
         this.channel = channel;
     }
@@ -135,8 +200,13 @@ public final class Connection {
         state = State.HANDSHAKE;
         // send the handshake message
         TypeMap message = new TypeMap();
-        message.put("protocolVersion", PROTOCOL_VERSION);
+        message.put("protocolVersion", MIN_PROTOCOL_VERSION);
+        message.put("maxProtocolVersion", PROTOCOL_VERSION);
         message.put("pluginVersion", Global.pluginVersion);
+        if (Network.getUseAESGCM() && SessionCipher.isAvailable()) {
+            localNonce = SessionCipher.newNonce();
+            message.put("sessionNonce", Base64.encode(localNonce));
+        }
 
         try {
             MessageDigest dig = MessageDigest.getInstance("SHA1");
@@ -164,104 +234,195 @@ public final class Connection {
         }, HANDSHAKE_TIMEOUT);
     }
 
-    public void onReadData(byte[] data) {
-        if (state == State.CLOSED) return;
-
+    // Returns the buffer the network thread should read into. The buffer is
+    // reused for the life of the connection and is always in write mode.
+    public ByteBuffer getReadBuffer() {
         if (readBuffer == null)
-            readBuffer = data;
-        else {
-            int oldSize = readBuffer.length;
-            readBuffer = Arrays.copyOf(readBuffer, oldSize + data.length);
-            System.arraycopy(data, 0, readBuffer, oldSize, data.length);
-        }
+            readBuffer = ByteBuffer.allocateDirect(Network.getCachedReadBufferSize());
+        return readBuffer;
+    }
+
+    // Called after data has been read into the read buffer. Complete frames
+    // are cut straight out of the buffer and queued for decoding, and whatever
+    // is left over is compacted to the front, growing the buffer if a frame
+    // won't fit.
+    public void onReadData() {
+        if (state == State.CLOSED) return;
+        ByteBuffer buffer = readBuffer;
+        buffer.flip();
 
         // extract and process all records received
-        while (readBuffer.length >= 4) {
-            byte flags = readBuffer[0];
-            int recLenNew =
-                    (0x00ff0000 & (Utils.unsignedByteToInt(readBuffer[1]) << 16)) +
-                    (0x0000ff00 & (Utils.unsignedByteToInt(readBuffer[2]) << 8)) +
-                    (0x000000ff & Utils.unsignedByteToInt(readBuffer[3]));
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            byte flags = buffer.get(start);
             int recLen =
-                    (0x00ff0000 & ((int)readBuffer[1] << 16)) +
-                    (0x0000ff00 & ((int)readBuffer[2] << 8)) +
-                    (0x000000ff & (int)readBuffer[3]);
-            if (recLen < 0) {
-                Utils.warning("received invalid message length from %s", name);
-                close();
-                return;
+                    ((buffer.get(start + 1) & 0xff) << 16) |
+                    ((buffer.get(start + 2) & 0xff) << 8) |
+                    (buffer.get(start + 3) & 0xff);
+            if (buffer.remaining() < (recLen + 4)) {
+                if (buffer.capacity() < (recLen + 4)) {
+                    ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, recLen + 4));
+                    newBuffer.put(buffer);
+                    readBuffer = newBuffer;
+                    scheduleDecode();
+                    return;
+                }
+                break;
             }
-            if (readBuffer.length >= (recLen + 4)) {
+            // the read buffer gets reused, so the decoder needs its own copy
+            Frame frame = takeFrame(flags, recLen);
+            buffer.position(start + 4);
+            buffer.get(frame.data, 0, recLen);
+            inbound.offer(frame);
+        }
+        buffer.compact();
+        scheduleDecode();
+    }
+
+    private void scheduleDecode() {
+        if (inbound.isEmpty() || (! decoding.compareAndSet(false, true))) return;
+        Network.decode(new Runnable() {
+            public void run() {
+                drainInbound();
+            }
+        });
+    }
+
+    // Only one of these runs at a time for a connection, so messages are handled in the order they arrived.
+    private void drainInbound() {
+        while (true) {
+            Frame frame;
+            while ((frame = inbound.poll()) != null) {
+                if (state == State.CLOSED) {
+                    inbound.clear();
+                    break;
+                }
                 try {
-                    byte[] messageData = Arrays.copyOfRange(readBuffer, 4, recLen + 4);
-                    byte[] clearData = messageData;
-                    if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
-                        Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                        cipher.initDecrypt(Network.getCachedKey().getBytes("UTF-8"));
-                        messageData = cipher.doFinal(messageData);
-                    }
-                    String encoded = new String(messageData, "UTF-8");
-                    try {
-                        TypeMap message = TypeMap.decode(encoded);
-                        if (message != null)
-                            onMessage(message);
-                    } catch (StringIndexOutOfBoundsException e) {
-                        Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
-                        Utils.severe("flags=%s", flags);
-                        Utils.severe("recLen bytes: %s %s %s",
-                            (0x00ff0000 & ((long)readBuffer[1] << 16)),
-                            (0x0000ff00 & ((long)readBuffer[2] << 8)),
-                            (0x000000ff & (long)readBuffer[3])
-                        );
-                        Utils.severe("recLen=%s", recLen);
-                        Utils.severe("recLenNew=%s", recLenNew);
-                        Utils.severe("readBuffer.length=%s", readBuffer.length);
-                        Utils.severe("clearData.length=%s", clearData.length);
-                        Utils.severe("messageData.length=%s", messageData.length);
-                        Utils.severe("encoded.length=%s", encoded.length());
-                        Utils.severe("encoded=%s", encoded);
-                        Utils.severe("first 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, 0, 16));
-                        Utils.severe("last 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, clearData.length - 16, 16));
-                        Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
-                        Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
-                        Utils.severe("first 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, 0, 16));
-                        Utils.severe("next 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, recLen + 4, 16));
-                        throw e;
-                    }
+                    onFrame(frame.flags, frame.buffer);
+                    releaseFrame(frame);
                 } catch (Throwable t) {
                     Utils.severe(t, "exception while processing message from %s: %s", name, t.getMessage());
                     close();
-                    return;
-                }
-                if ((recLen + 4) == readBuffer.length) {
-                    readBuffer = null;
+                    inbound.clear();
                     break;
-                } else
-                    readBuffer = Arrays.copyOfRange(readBuffer, recLen + 4, readBuffer.length);
-            } else
-                break;
+                }
+            }
+            decoding.set(false);
+            // a frame may have been queued after we stopped looking
+            if (inbound.isEmpty() || (! decoding.compareAndSet(false, true))) return;
         }
-
     }
 
-    public boolean onHasWriteData() {
-        synchronized (writeBuffers) {
-            return ! writeBuffers.isEmpty();
+    // Frames go back to the pool once they've been decoded, nothing keeps a reference to their data.
+    private Frame takeFrame(byte flags, int length) {
+        Frame frame;
+        synchronized (freeFrames) {
+            frame = freeFrames.poll();
         }
+        if (frame == null)
+            frame = new Frame();
+        frame.reset(flags, length);
+        return frame;
+    }
 
+    private void releaseFrame(Frame frame) {
+        if (frame.data.length > MAX_FREE_FRAME_SIZE) return;
+        synchronized (freeFrames) {
+            if (freeFrames.size() < MAX_FREE_FRAMES)
+                freeFrames.offer(frame);
+        }
     }
 
-    public byte[] onGetWriteData() {
-        synchronized (writeBuffers) {
-            if (writeBuffers.isEmpty()) return null;
-            return writeBuffers.remove(0);
+    private void onFrame(byte flags, ByteBuffer frame) throws UnsupportedEncodingException, GeneralSecurityException {
+        int recLen = frame.remaining();
+        if ((flags & SESSION_FLAG) == SESSION_FLAG) {
+            SessionCipher session = receiveSession;
+            if (session == null)
+                throw new GeneralSecurityException("received an AES-GCM frame but AES-GCM wasn't negotiated");
+            frame = ByteBuffer.wrap(session.decrypt(frame));
+        } else if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
+            if (receiveKey == null)
+                receiveKey = Network.getCachedKey().getBytes("UTF-8");
+            receiveCipher.initDecrypt(receiveKey);
+            receiveCipher.update(frame);
+            frame = ByteBuffer.wrap(receiveCipher.doFinal());
+        }
+        if ((flags & BINARY_FLAG) == BINARY_FLAG) {
+            TypeMap message = MessageCodec.decode(frame);
+            if (message != null)
+                onMessage(message);
+            return;
+        }
+        byte[] messageData;
+        if (frame.hasArray() && (frame.arrayOffset() == 0) && (frame.remaining() == frame.array().length))
+            messageData = frame.array();
+        else {
+            messageData = new byte[frame.remaining()];
+            frame.get(messageData);
+        }
+        String encoded = new String(messageData, "UTF-8");
+        try {
+            TypeMap message = TypeMap.decode(encoded);
+            if (message != null)
+                onMessage(message);
+        } catch (StringIndexOutOfBoundsException e) {
+            Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
+            Utils.severe("flags=%s", flags);
+            Utils.severe("recLen=%s", recLen);
+            Utils.severe("messageData.length=%s", messageData.length);
+            Utils.severe("encoded.length=%s", encoded.length());
+            Utils.severe("encoded=%s", encoded);
+            Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
+            Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
+            throw e;
         }
     }
 
-    public void onPutWriteData(byte[] data) {
-        synchronized (writeBuffers) {
-            writeBuffers.add(0, data);
+    public boolean onHasWriteData() {
+        return (pendingWriteCount > 0) || (! writeQueue.isEmpty());
+    }
+
+    // called from selection thread
+    // Writes as many queued frames as the channel will take in a single call.
+    // Returns the number of bytes written.
+    public long onWriteData(GatheringByteChannel channel) throws IOException {
+        ByteBuffer frame;
+        while ((pendingWriteCount < MAX_GATHER) && ((frame = writeQueue.poll()) != null)) {
+            pendingWrites[pendingWriteCount++] = frame;
+            writeQueueDepth.decrementAndGet();
+        }
+        if (pendingWriteCount == 0) return 0;
+        long numWrote = channel.write(pendingWrites, 0, pendingWriteCount);
+        writeCalls++;
+        bytesWritten += numWrote;
+
+        // drop the frames that went out completely, a partial frame keeps its position
+        int done = 0;
+        while ((done < pendingWriteCount) && (! pendingWrites[done].hasRemaining()))
+            done++;
+        if (done > 0) {
+            System.arraycopy(pendingWrites, done, pendingWrites, 0, pendingWriteCount - done);
+            for (int i = pendingWriteCount - done; i < pendingWriteCount; i++)
+                pendingWrites[i] = null;
+            pendingWriteCount -= done;
         }
+        return numWrote;
+    }
+
+    public int getWriteQueueDepth() {
+        return writeQueueDepth.get() + pendingWriteCount;
+    }
+
+    public int getMaxWriteQueueDepth() {
+        return maxWriteQueueDepth;
+    }
+
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
     }
 
     public void onWriteCompleted() {
@@ -269,6 +430,10 @@ public final class Connection {
 
     public void onKilled() {
         channel = null;
+        readBuffer = null;
+        for (int i = 0; i < pendingWriteCount; i++)
+            pendingWrites[i] = null;
+        pendingWriteCount = 0;
     }
 
     public void onClosed() {
@@ -305,17 +470,33 @@ public final class Connection {
     public void sendMessage(TypeMap message, boolean encrypt) {
         if (state == State.CLOSED) return;
         try {
-            String encoded = message.encode();
-            byte[] messageData = encoded.getBytes("UTF-8");
+            boolean binary = protocolVersion >= BINARY_PROTOCOL_VERSION;
+            String encoded = null;
+            byte[] messageData;
+            if (binary)
+                messageData = MessageCodec.encode(message);
+            else {
+                encoded = message.encode();
+                messageData = encoded.getBytes("UTF-8");
+            }
             byte[] clearData = messageData;
+            byte flags = binary ? BINARY_FLAG : 0;
             if (encrypt) {
-                Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                cipher.initEncrypt(server.getKey().getBytes("UTF-8"));
-                messageData = cipher.doFinal(messageData);
+                SessionCipher session = sendSession;
+                if (session != null) {
+                    messageData = session.encrypt(messageData);
+                    flags |= SESSION_FLAG;
+                } else {
+                    synchronized (sendCipher) {
+                        sendCipher.initEncrypt(getSendKey());
+                        messageData = sendCipher.doFinal(messageData);
+                    }
+                    flags |= ENCRYPTED_FLAG;
+                }
             }
             byte[] data = new byte[messageData.length + 4];
             System.arraycopy(messageData, 0, data, 4, messageData.length);
-            data[0] = encrypt ? ENCRYPTED_FLAG : 0;
+            data[0] = flags;
             data[1] = (byte)(0x00ff & (messageData.length >> 16));
             data[2] = (byte)(0x00ff & (messageData.length >> 8));
             data[3] = (byte)(0x00ff & messageData.length);
@@ -327,7 +508,7 @@ public final class Connection {
             if (recLen != messageData.length) {
                 Utils.severe("Encoded message link mismatched, dumping debug state!!!");
                 Utils.severe("encoded=%s", encoded);
-                Utils.severe("encoded.length=%s", encoded.length());
+                Utils.severe("encoded.length=%s", (encoded == null) ? 0 : encoded.length());
                 Utils.severe("encrypt=%s", encrypt);
                 Utils.severe("clearData.length=%s", clearData.length);
                 Utils.severe("messageData.length=%s", messageData.length);
@@ -346,15 +527,58 @@ public final class Connection {
                 Utils.severe("last 16 bytes of data: %s", Utils.byteArrayToString(data, data.length - 16, 16));
                 (new Exception("Invalid message encoding!!!")).printStackTrace();
             }
-            synchronized (writeBuffers) {
-                writeBuffers.add(data);
-            }
+            writeQueue.offer(ByteBuffer.wrap(data));
+            int depth = writeQueueDepth.incrementAndGet();
+            if (depth > maxWriteQueueDepth)
+                maxWriteQueueDepth = depth;
             lastMessageSentTime = System.currentTimeMillis();
+            if (data.length <= COALESCE_SIZE) {
+                Network.wantWriteSoon(this);
+                return;
+            }
         } catch (UnsupportedEncodingException e) {
+        } catch (GeneralSecurityException e) {
+            Utils.severe(e, "unable to encrypt message to %s: %s", getName(), e.getMessage());
+            close();
+            return;
         }
         Network.wantWrite(this);
     }
 
+    // called with sendCipher locked
+    private byte[] getSendKey() throws UnsupportedEncodingException {
+        String key = server.getKey();
+        if (! key.equals(sendKeyString)) {
+            sendKey = key.getBytes("UTF-8");
+            sendKeyString = key;
+        }
+        return sendKey;
+    }
+
+    private boolean wantsSession(TypeMap message) {
+        return Network.getUseAESGCM() &&
+               SessionCipher.isAvailable() &&
+               (message.getString("sessionNonce") != null);
+    }
+
+    // Both nonces are known, so derive the keys for each direction.
+    private void startSession(String remoteNonceStr) {
+        try {
+            byte[] remoteNonce = Base64.decode(remoteNonceStr);
+            if ((remoteNonce == null) || (remoteNonce.length != SessionCipher.NONCE_SIZE))
+                throw new GeneralSecurityException("invalid session nonce");
+            receiveSession = SessionCipher.create(Network.getCachedKey(), remoteNonce, localNonce);
+            sendSession = SessionCipher.create(server.getKey(), localNonce, remoteNonce);
+            Utils.debug("using AES-GCM on connection with '%s'", getName());
+        } catch (GeneralSecurityException e) {
+            Utils.warning("unable to start AES-GCM on connection with '%s': %s", getName(), e.getMessage());
+            receiveSession = sendSession = null;
+        } catch (IllegalArgumentException e) {
+            Utils.warning("unable to start AES-GCM on connection with '%s': %s", getName(), e.getMessage());
+            receiveSession = sendSession = null;
+        }
+    }
+
     public Result sendRequest(TypeMap message, boolean encrypt) {
         int requestId = nextRequestId++;
         message.put("requestId", requestId);
@@ -388,12 +612,15 @@ public final class Connection {
                 return;
             }
             int protocol = message.getInt("protocolVersion", 0);
-            if (protocol != PROTOCOL_VERSION) {
+            int maxProtocol = message.getInt("maxProtocolVersion", protocol);
+            if ((protocol > PROTOCOL_VERSION) || (maxProtocol < MIN_PROTOCOL_VERSION)) {
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
-                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d', got '%d'", getName(), PROTOCOL_VERSION, protocol);
+                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d' to '%d', got '%d' to '%d'", getName(), MIN_PROTOCOL_VERSION, PROTOCOL_VERSION, protocol, maxProtocol);
                 close();
                 return;
             }
+            int negotiatedVersion = Math.min(PROTOCOL_VERSION, maxProtocol);
+            Utils.debug("using protocol version %d on connection with '%s'", negotiatedVersion, getName());
             String version = message.getString("pluginVersion");
             if (version == null) {
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
@@ -431,10 +658,19 @@ public final class Connection {
                                 state = State.ESTABLISHED;
 
                                 // send handshake
+                                String remoteNonce = wantsSession(message) ? message.getString("sessionNonce") : null;
                                 message = new TypeMap();
-                                message.put("protocolVersion", PROTOCOL_VERSION);
+                                message.put("protocolVersion", MIN_PROTOCOL_VERSION);
+                                message.put("maxProtocolVersion", PROTOCOL_VERSION);
                                 message.put("pluginVersion", Global.pluginVersion);
+                                if (remoteNonce != null) {
+                                    localNonce = SessionCipher.newNonce();
+                                    message.put("sessionNonce", Base64.encode(localNonce));
+                                }
                                 sendMessage(message, false);
+                                protocolVersion = negotiatedVersion;
+                                if (remoteNonce != null)
+                                    startSession(remoteNonce);
 
                                 server.onConnected(version);
                                 return;
@@ -457,6 +693,9 @@ public final class Connection {
                 sendMessage(errMsg, false);
                 close();
             } else {
+                protocolVersion = negotiatedVersion;
+                if ((localNonce != null) && wantsSession(message))
+                    startSession(message.getString("sessionNonce"));
                 state = State.ESTABLISHED;
                 server.onConnected(version);
             }
@@ -484,6 +723,22 @@ public final class Connection {
         }
     }
 
+    private static final class Frame {
+        byte flags;
+        byte[] data = new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        // the buffer covers the first length bytes of data
+        void reset(byte flags, int length) {
+            this.flags = flags;
+            if (data.length < length) {
+                data = new byte[length];
+                buffer = ByteBuffer.wrap(data);
+            }
+            buffer.clear();
+            buffer.limit(length);
+        }
+    }
+
     private enum State {
         NONE,
         HANDSHAKE,
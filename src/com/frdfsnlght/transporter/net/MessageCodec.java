@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of messages exchanged between servers.
+ * <p>
+ * Every value is a one byte tag followed by its payload. Integral numbers
+ * are zig-zag varints, floating point numbers are 8 byte doubles, and
+ * strings, maps and lists are prefixed with a varint length or count.
+ * Decoded values have the same types the string encoding in
+ * {@link TypeMap#encode} produces: Long, Double, Boolean, String,
+ * TypeMap and List.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class MessageCodec {
+
+    // Bump this and add a new case to decodeObject if the tags ever change.
+    public static final int VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_MAP = 6;
+    private static final byte TAG_LIST = 7;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    // Messages are encoded from the main thread and the network thread, so each gets its own scratch buffer.
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    public static byte[] encode(TypeMap message) {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer = encodeObject(buffer, message);
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+            buffers.remove();
+        else
+            buffers.set(buffer);
+        byte[] data = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(data);
+        return data;
+    }
+
+    public static TypeMap decode(byte[] data) {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    // Decodes one message from the buffer's remaining bytes.
+    public static TypeMap decode(ByteBuffer buffer) {
+        try {
+            Object o = decodeObject(buffer);
+            if ((o != null) && (! (o instanceof TypeMap)))
+                throw new IllegalArgumentException("message is not a map");
+            return (TypeMap)o;
+        } catch (BufferUnderflowException bue) {
+            throw new IllegalArgumentException("truncated message");
+        }
+    }
+
+    private static ByteBuffer encodeObject(ByteBuffer b, Object v) {
+        if (v == null) {
+            b = ensure(b, 1);
+            b.put(TAG_NULL);
+        } else if (v instanceof String) {
+            b = ensure(b, 1);
+            b.put(TAG_STRING);
+            b = encodeString(b, (String)v);
+        } else if (v instanceof Enum) {
+            // decoded as the plain string
+            b = ensure(b, 1);
+            b.put(TAG_STRING);
+            b = encodeString(b, ((Enum)v).name());
+        } else if (v instanceof Boolean) {
+            b = ensure(b, 1);
+            b.put(((Boolean)v) ? TAG_TRUE : TAG_FALSE);
+        } else if ((v instanceof Byte) || (v instanceof Short) || (v instanceof Integer) || (v instanceof Long)) {
+            b = ensure(b, 11);
+            b.put(TAG_LONG);
+            long l = ((Number)v).longValue();
+            putVarLong(b, (l << 1) ^ (l >> 63));
+        } else if ((v instanceof Float) || (v instanceof Double)) {
+            b = ensure(b, 9);
+            b.put(TAG_DOUBLE);
+            b.putDouble(((Number)v).doubleValue());
+        } else if (v instanceof TypeMap) {
+            TypeMap m = (TypeMap)v;
+            b = ensure(b, 6);
+            b.put(TAG_MAP);
+            putVarLong(b, m.size());
+            for (Map.Entry<String,Object> e : m.entrySet()) {
+                b = encodeString(b, e.getKey());
+                b = encodeObject(b, e.getValue());
+            }
+        } else if (v instanceof Collection) {
+            Collection c = (Collection)v;
+            b = ensure(b, 6);
+            b.put(TAG_LIST);
+            putVarLong(b, c.size());
+            for (Object o : c)
+                b = encodeObject(b, o);
+        } else
+            throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
+        return b;
+    }
+
+    private static ByteBuffer encodeString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        b = ensure(b, bytes.length + 5);
+        putVarLong(b, bytes.length);
+        b.put(bytes);
+        return b;
+    }
+
+    private static Object decodeObject(ByteBuffer b) {
+        byte tag = b.get();
+        switch (tag) {
+            case TAG_NULL: return null;
+            case TAG_STRING: return decodeString(b);
+            case TAG_TRUE: return Boolean.TRUE;
+            case TAG_FALSE: return Boolean.FALSE;
+            case TAG_LONG:
+                long l = getVarLong(b);
+                return (l >>> 1) ^ -(l & 1);
+            case TAG_DOUBLE: return b.getDouble();
+            case TAG_MAP:
+                int size = getLength(b);
+                TypeMap m = new TypeMap();
+                for (int i = 0; i < size; i++) {
+                    String key = decodeString(b);
+                    m.put(key, decodeObject(b));
+                }
+                return m;
+            case TAG_LIST:
+                int count = getLength(b);
+                List<Object> list = new ArrayList<Object>(Math.min(count, b.remaining()));
+                for (int i = 0; i < count; i++)
+                    list.add(decodeObject(b));
+                return list;
+            default:
+                throw new IllegalArgumentException("unable to decode tag " + tag);
+        }
+    }
+
+    private static String decodeString(ByteBuffer b) {
+        int len = getLength(b);
+        if (len > b.remaining())
+            throw new IllegalArgumentException("truncated string");
+        String s;
+        if (b.hasArray()) {
+            s = new String(b.array(), b.arrayOffset() + b.position(), len, UTF8);
+            b.position(b.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            b.get(bytes);
+            s = new String(bytes, UTF8);
+        }
+        return s;
+    }
+
+    private static int getLength(ByteBuffer b) {
+        long len = getVarLong(b);
+        if ((len < 0) || (len > Integer.MAX_VALUE))
+            throw new IllegalArgumentException("invalid length " + len);
+        return (int)len;
+    }
+
+    private static void putVarLong(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte)v);
+    }
+
+    private static long getVarLong(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte in = b.get();
+            v |= (long)(in & 0x7F) << shift;
+            if ((in & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    private static ByteBuffer ensure(ByteBuffer b, int needed) {
+        if (b.remaining() >= needed) return b;
+        int capacity = b.capacity();
+        while ((capacity - b.position()) < needed)
+            capacity <<= 1;
+        ByteBuffer nb = ByteBuffer.allocate(capacity);
+        b.flip();
+        nb.put(b);
+        return nb;
+    }
+
+}
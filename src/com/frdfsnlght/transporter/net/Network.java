@@ -23,20 +23,22 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import com.frdfsnlght.transporter.Config;
@@ -45,6 +47,7 @@ import com.frdfsnlght.transporter.Global;
 import com.frdfsnlght.transporter.Options;
 import com.frdfsnlght.transporter.OptionsException;
 import com.frdfsnlght.transporter.OptionsListener;
+import com.frdfsnlght.transporter.Patterns;
 import com.frdfsnlght.transporter.PermissionsException;
 import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Servers;
@@ -64,8 +67,12 @@ public final class Network {
     static {
         OPTIONS.add("readBufferSize");
         OPTIONS.add("selectInterval");
+        OPTIONS.add("selectorThreads");
+        OPTIONS.add("decoderThreads");
+        OPTIONS.add("writeCoalesceDelay");
         OPTIONS.add("usePrivateAddress");
         OPTIONS.add("sendPrivateAddress");
+        OPTIONS.add("useAESGCM");
         OPTIONS.add("clusterName");
         OPTIONS.add("reconnectInterval");
         OPTIONS.add("reconnectSkew");
@@ -76,6 +83,8 @@ public final class Network {
 
         RESTART_OPTIONS.add("readBufferSize");
         RESTART_OPTIONS.add("selectInterval");
+        RESTART_OPTIONS.add("selectorThreads");
+        RESTART_OPTIONS.add("decoderThreads");
         RESTART_OPTIONS.add("clusterName");
         RESTART_OPTIONS.add("listenAddress");
         RESTART_OPTIONS.add("key");
@@ -178,17 +187,23 @@ public final class Network {
         return null;
     }
 
+    // Most decode tasks allowed to wait for a decoder thread before the selector threads decode for themselves
+    private static final int DECODER_QUEUE_SIZE = 1024;
+
     private static Thread networkThread;
     private static ThreadState state = ThreadState.STOPPED;
     private static InetSocketAddress listenAddress = null;
     private static String key;
     private static int selectInterval;
     private static int readBufferSize;
+    private static int writeCoalesceDelay;
+    private static int selectorThreadCount;
+    private static int decoderThreadCount;
     private static Selector selector = null;
     private static final Set<Pattern> banned = new HashSet<Pattern>();
-    private static final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
-    private static final Set<Connection> opening = new HashSet<Connection>();
-    private static final Set<Connection> closing = new HashSet<Connection>();
+    private static SelectorThread[] selectorThreads = null;
+    private static final AtomicInteger nextSelectorThread = new AtomicInteger();
+    private static ThreadPoolExecutor decoders = null;
 
     // called from main thread
     public static void start(Context ctx) {
@@ -202,6 +217,32 @@ public final class Network {
             return;
         }
 
+        // the I/O threads have to exist before anything can be opened
+        SelectorThread[] threads = new SelectorThread[selectorThreadCount];
+        try {
+            for (int i = 0; i < threads.length; i++)
+                threads[i] = new SelectorThread("Transporter network I/O " + (i + 1));
+        } catch (IOException e) {
+            ctx.warn("network manager cannot be started (server-to-server is disabled): %s", e.getMessage());
+            return;
+        }
+        for (SelectorThread thread : threads)
+            thread.start();
+        selectorThreads = threads;
+
+        final AtomicInteger decoderNumber = new AtomicInteger();
+        decoders = new ThreadPoolExecutor(decoderThreadCount, decoderThreadCount,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DECODER_QUEUE_SIZE),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Transporter network decoder " + decoderNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
         networkThread = new Thread(new Runnable() {
             public void run() {
                 Network.run();
@@ -247,13 +288,16 @@ public final class Network {
         key = getKey();
         selectInterval = getSelectInterval();
         readBufferSize = getReadBufferSize();
+        selectorThreadCount = getSelectorThreads();
+        decoderThreadCount = getDecoderThreads();
+        writeCoalesceDelay = getWriteCoalesceDelay();
 
         banned.clear();
         List<String> addresses = Config.getStringList("network.bannedAddresses");
         if (addresses != null)
             for (String addressPattern : addresses) {
                 try {
-                    Pattern pattern = Pattern.compile(addressPattern);
+                    Pattern pattern = Patterns.compile(addressPattern);
                     banned.add(pattern);
                 } catch (PatternSyntaxException pse) {
                     ctx.warn("ignored invalid bannedAddress pattern '%s': %s", addressPattern, pse.getMessage());
@@ -293,6 +337,37 @@ public final class Network {
         Config.setPropertyDirect("network.selectInterval", i);
     }
 
+    public static int getWriteCoalesceDelay() {
+        return Config.getIntDirect("network.writeCoalesceDelay", 5);
+    }
+
+    public static void setWriteCoalesceDelay(int i) {
+        if ((i < 0) || (i > 100))
+            throw new IllegalArgumentException("writeCoalesceDelay must be between 0 and 100");
+        Config.setPropertyDirect("network.writeCoalesceDelay", i);
+        writeCoalesceDelay = i;
+    }
+
+    public static int getSelectorThreads() {
+        return Config.getIntDirect("network.selectorThreads", 2);
+    }
+
+    public static void setSelectorThreads(int i) {
+        if ((i < 1) || (i > 32))
+            throw new IllegalArgumentException("selectorThreads must be between 1 and 32");
+        Config.setPropertyDirect("network.selectorThreads", i);
+    }
+
+    public static int getDecoderThreads() {
+        return Config.getIntDirect("network.decoderThreads", 2);
+    }
+
+    public static void setDecoderThreads(int i) {
+        if ((i < 1) || (i > 32))
+            throw new IllegalArgumentException("decoderThreads must be between 1 and 32");
+        Config.setPropertyDirect("network.decoderThreads", i);
+    }
+
     public static boolean getUsePrivateAddress() {
         return Config.getBooleanDirect("network.usePrivateAddress", true);
     }
@@ -309,6 +384,14 @@ public final class Network {
         Config.setPropertyDirect("network.sendPrivateAddress", b);
     }
 
+    public static boolean getUseAESGCM() {
+        return Config.getBooleanDirect("network.useAESGCM", true);
+    }
+
+    public static void setUseAESGCM(boolean b) {
+        Config.setPropertyDirect("network.useAESGCM", b);
+    }
+
     public static String getClusterName() {
         return Config.getStringDirect("network.clusterName", null);
     }
@@ -391,6 +474,14 @@ public final class Network {
         return key;
     }
 
+    static int getCachedReadBufferSize() {
+        return readBufferSize;
+    }
+
+    static int getCachedSelectInterval() {
+        return selectInterval;
+    }
+
     public static boolean isStopped() {
         return (state == ThreadState.STOP) || (state == ThreadState.STOPPING) || (state == ThreadState.STOPPED);
     }
@@ -399,13 +490,15 @@ public final class Network {
     public static boolean addBannedAddress(String addrStr) throws NetworkException {
         Pattern pattern;
         try {
-            pattern = Pattern.compile(addrStr);
+            pattern = Patterns.compile(addrStr);
         } catch (PatternSyntaxException pse) {
             throw new NetworkException("invalid pattern: %s", pse.getMessage());
         }
         synchronized (banned) {
-            if (banned.contains(pattern)) return false;
-            banned.remove(pattern);
+            // cached patterns can be evicted and recompiled, so compare the expressions
+            for (Pattern p : banned)
+                if (p.pattern().equals(pattern.pattern())) return false;
+            banned.add(pattern);
             return true;
         }
     }
@@ -442,8 +535,33 @@ public final class Network {
         return l;
     }
 
+    // called from main thread
+    public static void getStatus(Context ctx) {
+        SelectorThread[] threads = selectorThreads;
+        if ((threads == null) || isStopped()) {
+            ctx.send("network manager is not running");
+            return;
+        }
+        ctx.send("%d selector threads:", threads.length);
+        for (SelectorThread thread : threads)
+            ctx.send("  %s: %d connections, %d bytes read, %d bytes written, %.1f%% busy",
+                    thread.getName(),
+                    thread.getConnectionCount(),
+                    thread.getBytesRead(),
+                    thread.getBytesWritten(),
+                    thread.getBusyPercent());
+        ThreadPoolExecutor pool = decoders;
+        if (pool != null)
+            ctx.send("%d decoder threads: %d active, %d queued, %d completed",
+                    pool.getPoolSize(),
+                    pool.getActiveCount(),
+                    pool.getQueue().size(),
+                    pool.getCompletedTaskCount());
+    }
+
     /* Networking gunk */
 
+    // The listener thread accepts incoming connections and hands them to the selector threads.
     private static void run() {
 
         ServerSocketChannel serverChannel = null;
@@ -466,49 +584,7 @@ public final class Network {
                 if (state == ThreadState.STOP) {
                     state = ThreadState.STOPPING;
                     serverChannel.keyFor(selector).cancel();
-                    synchronized (closing) {
-                        closing.addAll(channels.values());
-                        for (Connection conn : closing)
-                            wantWrite(conn);
-                    }
-                    synchronized (opening) {
-                        opening.removeAll(channels.values());
-                    }
-                }
-                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
-
-                // Close connections that are still waiting to open
-                synchronized (closing) {
-                    if (! closing.isEmpty()) {
-                        for (Connection conn : new HashSet<Connection>(closing)) {
-                            if (conn.onHasWriteData()) continue;
-                            kill(conn);
-                            conn.onClosed();
-                        }
-                    }
-                }
-                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
-
-                // Open connections that are waiting
-                synchronized (opening) {
-                    if (! opening.isEmpty()) {
-                        for (Connection conn : opening) {
-                            try {
-                                SocketChannel channel = SocketChannel.open();
-                                channel.configureBlocking(false);
-                                try {
-                                    InetSocketAddress address = makeInetSocketAddress(conn.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
-                                    channel.connect(address);
-                                } catch (Exception e) {}
-                                channel.register(selector, SelectionKey.OP_CONNECT);
-                                channels.put(channel, conn);
-                                conn.onOpening(channel);
-                            } catch (IOException e) {
-                                conn.onException(e);
-                            }
-                        }
-                        opening.clear();
-                    }
+                    break;
                 }
 
                 // Tell connected servers to do keep alives
@@ -518,15 +594,12 @@ public final class Network {
                 }
 
                 if (selector.select(selectInterval) > 0) {
-                    Iterator keys = selector.selectedKeys().iterator();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
                     while (keys.hasNext()) {
-                        SelectionKey selKey = (SelectionKey)keys.next();
+                        SelectionKey selKey = keys.next();
                         keys.remove();
                         if (! selKey.isValid()) continue;
                         if (selKey.isAcceptable()) onAccept(selKey);
-                        else if (selKey.isConnectable()) onConnect(selKey);
-                        else if (selKey.isReadable()) onRead(selKey);
-                        else if (selKey.isWritable()) onWrite(selKey);
                     }
                 }
 
@@ -537,6 +610,18 @@ public final class Network {
         } catch (IOException ioe) {
             Utils.severe(ioe, "network manager IOException: " + ioe.getMessage());
         }
+
+        // let the selector threads flush and close their connections
+        SelectorThread[] threads = selectorThreads;
+        if (threads != null)
+            for (SelectorThread thread : threads)
+                thread.stop();
+        selectorThreads = null;
+        if (decoders != null) {
+            decoders.shutdown();
+            decoders = null;
+        }
+
         state = ThreadState.STOPPED;
 
         if (selector != null)
@@ -550,31 +635,10 @@ public final class Network {
 
     }
 
-    // called from selection thread
-    private static void kill(Connection conn) {
-        Utils.debug("kill %s", conn);
-        SocketChannel channel = conn.getChannel();
-        if (channel != null) {
-            SelectionKey selKey = channel.keyFor(selector);
-            if (selKey != null)
-                selKey.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            channels.remove(channel);
-        }
-        synchronized (closing) {
-            closing.remove(conn);
-        }
-        synchronized (opening) {
-            opening.remove(conn);
-        }
-        conn.onKilled();
-    }
-
     private static void onAccept(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
         SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
         channel.configureBlocking(false);
 
         Socket socket = channel.socket();
@@ -595,145 +659,70 @@ public final class Network {
         }
 
         Connection conn = new Connection(channel);
-        channels.put(channel, conn);
-        channel.register(selector, SelectionKey.OP_READ);
-        conn.onAccepted();
-    }
-
-    private static void onConnect(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            return;
-        }
-
-        try {
-            if (channel.isConnectionPending())
-                channel.finishConnect();
-        } catch (IOException e) {
-            conn.onException(e);
+        SelectorThread thread = selectorThreadFor(conn);
+        if (thread == null) {
+            channel.close();
             return;
         }
-        key.interestOps(SelectionKey.OP_READ);
-        conn.onOpened();
+        thread.accept(conn);
     }
 
-    private static void onRead(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            return;
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocate(readBufferSize);
-        int numRead = 0;
-        while (true) {
-            try {
-                numRead = channel.read(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
-                return;
-            }
-            Utils.debug("read %d from %s", numRead, conn);
-            if (numRead <= 0) break;
-            conn.onReadData(Arrays.copyOfRange(buffer.array(), 0, numRead));
-            if (numRead < readBufferSize) break;
-            buffer.clear();
-        }
-        if (numRead == -1) {
-            kill(conn);
-            conn.onClosed();
-        }
+    // Returns the selector thread that owns the connection, assigning one round-robin the first time.
+    private static SelectorThread selectorThreadFor(Connection conn) {
+        SelectorThread thread = conn.getSelectorThread();
+        if (thread != null) return thread;
+        SelectorThread[] threads = selectorThreads;
+        if (threads == null) return null;
+        thread = threads[(nextSelectorThread.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+        conn.setSelectorThread(thread);
+        return thread;
     }
 
-    private static void onWrite(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            return;
-        }
-
-        ByteBuffer buffer;
-        byte[] data;
-        int numWrote;
-        while (true) {
-            data = conn.onGetWriteData();
-            if (data == null) break;
-            buffer = ByteBuffer.wrap(data);
+    // can be called from any thread
+    // Runs the task on a decoder thread, or on the calling thread if the decoders are busy or stopped.
+    static void decode(Runnable task) {
+        ThreadPoolExecutor pool = decoders;
+        if (pool != null) {
             try {
-                numWrote = channel.write(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
+                pool.execute(task);
                 return;
-            }
-            Utils.debug("wrote %d to %s", numWrote, conn);
-            if (numWrote == data.length) continue;
-            conn.onPutWriteData(Arrays.copyOfRange(data, numWrote, data.length - 1));
-            break;
-        }
-        if (! conn.onHasWriteData()) {
-            key.interestOps(SelectionKey.OP_READ);
-            synchronized (closing) {
-                if (closing.contains(conn)) {
-                    kill(conn);
-                    conn.onClosed();
-                    return;
-                }
-            }
-            conn.onWriteCompleted();
+            } catch (RejectedExecutionException e) {}
         }
+        task.run();
     }
 
     // can be called from any thread
     public static void open(Connection conn) {
-        synchronized (opening) {
-            opening.add(conn);
-        }
-        if (selector != null)
-            selector.wakeup();
+        SelectorThread thread = selectorThreadFor(conn);
+        if (thread != null)
+            thread.open(conn);
     }
 
     // can be called from any thread
     public static void close(Connection conn) {
-        synchronized (closing) {
-            closing.add(conn);
+        SelectorThread thread = selectorThreadFor(conn);
+        if (thread != null)
+            thread.close(conn);
+    }
+
+    // can be called from any thread
+    // Like wantWrite, but gives other small messages a chance to join this one before it's written.
+    public static void wantWriteSoon(Connection conn) {
+        if (writeCoalesceDelay <= 0) {
+            wantWrite(conn);
+            return;
         }
-        wantWrite(conn);
+        SelectorThread thread = conn.getSelectorThread();
+        if (thread != null)
+            thread.wantWriteSoon(conn, writeCoalesceDelay);
     }
 
     // can be called from any thread
     public static void wantWrite(Connection conn) {
         if (conn == null) return;
-        if (conn.getChannel() == null) return;
-        SelectionKey selKey = conn.getChannel().keyFor(selector);
-        if ((selKey == null) || (! selKey.isValid())) return;
-        selKey.interestOps(selKey.interestOps() | SelectionKey.OP_WRITE);
-
-        /*
-        try {
-            Utils.debug("wantWrite to %s: %s %s %s %s", conn,
-                conn.getChannel().isOpen(),
-                conn.getChannel().isConnected(),
-                conn.getChannel().socket().isClosed(),
-                conn.getChannel().socket().isConnected());
-        } catch (Throwable t) {
-            Utils.debug("wantWrite to %s: got throwable: %s: %s", conn, t.getClass().getName(), t.getMessage());
-        }
-        */
-
-        selector.wakeup();
+        SelectorThread thread = conn.getSelectorThread();
+        if (thread != null)
+            thread.wantWrite(conn);
     }
 
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import com.frdfsnlght.transporter.Global;
+import com.frdfsnlght.transporter.ThreadState;
+import com.frdfsnlght.transporter.Utils;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One of the threads that does socket I/O for a share of the connections.
+ * <p>
+ * Network hands connections to these threads round-robin. A connection
+ * stays with the same thread for its whole life, so everything about its
+ * channel is only touched from that thread.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class SelectorThread {
+
+    private final String name;
+    private final Selector selector;
+    private Thread thread;
+    private volatile ThreadState state = ThreadState.STOPPED;
+
+    private final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
+    private final Set<Connection> opening = new HashSet<Connection>();
+    private final Set<Connection> closing = new HashSet<Connection>();
+    private final Queue<Connection> accepted = new ConcurrentLinkedQueue<Connection>();
+    private final Map<Connection,Long> delayedWrites = new HashMap<Connection,Long>();
+    private volatile long selectDeadline = 0;
+
+    // Load figures for "network status"
+    private volatile int connectionCount = 0;
+    private volatile long bytesRead = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long busyNanos = 0;
+    private volatile long startedNanos = 0;
+
+    SelectorThread(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getConnectionCount() {
+        return connectionCount;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // Returns the percentage of time spent handling I/O rather than waiting for it.
+    double getBusyPercent() {
+        long elapsed = System.nanoTime() - startedNanos;
+        if ((startedNanos == 0) || (elapsed <= 0)) return 0;
+        return ((double)busyNanos * 100.0) / (double)elapsed;
+    }
+
+    void start() {
+        state = ThreadState.RUNNING;
+        startedNanos = System.nanoTime();
+        thread = new Thread(new Runnable() {
+            public void run() {
+                SelectorThread.this.run();
+            }
+        }, name);
+        thread.start();
+    }
+
+    // Closes all connections once their queued data has been written and waits for the thread to end.
+    void stop() {
+        if ((thread == null) || (! thread.isAlive())) return;
+        state = ThreadState.STOP;
+        selector.wakeup();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {}
+        }
+        thread = null;
+    }
+
+    // can be called from any thread
+    void open(Connection conn) {
+        synchronized (opening) {
+            opening.add(conn);
+        }
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    // The channel has already been accepted, it just needs to be registered by this thread.
+    void accept(Connection conn) {
+        accepted.offer(conn);
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    void close(Connection conn) {
+        synchronized (closing) {
+            closing.add(conn);
+        }
+        wantWrite(conn);
+    }
+
+    // can be called from any thread
+    void wantWriteSoon(Connection conn, int delay) {
+        long flushTime = System.currentTimeMillis() + delay;
+        synchronized (delayedWrites) {
+            if (delayedWrites.containsKey(conn)) return;
+            delayedWrites.put(conn, flushTime);
+        }
+        if (flushTime < selectDeadline)
+            selector.wakeup();
+    }
+
+    // can be called from any thread
+    void wantWrite(Connection conn) {
+        if (conn.getChannel() == null) return;
+        SelectionKey selKey = conn.getChannel().keyFor(selector);
+        if ((selKey == null) || (! selKey.isValid())) return;
+        int ops = selKey.interestOps();
+        if ((ops & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) return;
+        selKey.interestOps(ops | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (state == ThreadState.STOP) {
+                    state = ThreadState.STOPPING;
+                    synchronized (closing) {
+                        closing.addAll(channels.values());
+                        for (Connection conn : closing)
+                            wantWrite(conn);
+                    }
+                    synchronized (opening) {
+                        opening.removeAll(channels.values());
+                    }
+                }
+                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
+
+                // Close connections that are still waiting to open
+                synchronized (closing) {
+                    if (! closing.isEmpty()) {
+                        for (Connection conn : new HashSet<Connection>(closing)) {
+                            if (conn.onHasWriteData()) continue;
+                            kill(conn);
+                            conn.onClosed();
+                        }
+                    }
+                }
+                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
+
+                // Register connections the listener accepted for us
+                Connection conn;
+                while ((conn = accepted.poll()) != null) {
+                    SocketChannel channel = conn.getChannel();
+                    try {
+                        channel.register(selector, SelectionKey.OP_READ);
+                        channels.put(channel, conn);
+                        connectionCount = channels.size();
+                        conn.onAccepted();
+                    } catch (IOException e) {
+                        conn.onException(e);
+                    }
+                }
+
+                // Open connections that are waiting
+                synchronized (opening) {
+                    if (! opening.isEmpty()) {
+                        for (Connection c : opening) {
+                            try {
+                                SocketChannel channel = SocketChannel.open();
+                                channel.configureBlocking(false);
+                                try {
+                                    InetSocketAddress address = Network.makeInetSocketAddress(c.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
+                                    channel.connect(address);
+                                } catch (Exception e) {}
+                                channel.register(selector, SelectionKey.OP_CONNECT);
+                                channels.put(channel, c);
+                                connectionCount = channels.size();
+                                c.onOpening(channel);
+                            } catch (IOException e) {
+                                c.onException(e);
+                            }
+                        }
+                        opening.clear();
+                    }
+                }
+
+                // Flush small writes whose delay is up and work out how long we can sleep
+                long timeout = Network.getCachedSelectInterval();
+                synchronized (delayedWrites) {
+                    if (! delayedWrites.isEmpty()) {
+                        long now = System.currentTimeMillis();
+                        for (Iterator<Map.Entry<Connection,Long>> i = delayedWrites.entrySet().iterator(); i.hasNext(); ) {
+                            Map.Entry<Connection,Long> entry = i.next();
+                            long wait = entry.getValue() - now;
+                            if (wait <= 0) {
+                                i.remove();
+                                wantWrite(entry.getKey());
+                            } else if (wait < timeout)
+                                timeout = wait;
+                        }
+                    }
+                    selectDeadline = System.currentTimeMillis() + timeout;
+                }
+
+                if (selector.select(timeout) > 0) {
+                    long busyStart = System.nanoTime();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey selKey = keys.next();
+                        keys.remove();
+                        if (! selKey.isValid()) continue;
+                        if (selKey.isConnectable()) onConnect(selKey);
+                        else if (selKey.isReadable()) onRead(selKey);
+                        else if (selKey.isWritable()) onWrite(selKey);
+                    }
+                    busyNanos += System.nanoTime() - busyStart;
+                }
+            }
+        } catch (IOException ioe) {
+            Utils.severe(ioe, "%s IOException: %s", name, ioe.getMessage());
+        }
+        state = ThreadState.STOPPED;
+
+        // anything still around at this point is dead
+        for (Connection conn : new HashSet<Connection>(channels.values())) {
+            kill(conn);
+            conn.onClosed();
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {}
+    }
+
+    private void kill(Connection conn) {
+        Utils.debug("kill %s", conn);
+        SocketChannel channel = conn.getChannel();
+        if (channel != null) {
+            SelectionKey selKey = channel.keyFor(selector);
+            if (selKey != null)
+                selKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            channels.remove(channel);
+            connectionCount = channels.size();
+        }
+        synchronized (closing) {
+            closing.remove(conn);
+        }
+        synchronized (opening) {
+            opening.remove(conn);
+        }
+        synchronized (delayedWrites) {
+            delayedWrites.remove(conn);
+        }
+        conn.onKilled();
+    }
+
+    private void onConnect(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        try {
+            if (channel.isConnectionPending())
+                channel.finishConnect();
+        } catch (IOException e) {
+            conn.onException(e);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        conn.onOpened();
+    }
+
+    private void onRead(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        // read straight into the connection's buffer until the socket is drained
+        int numRead = 0;
+        while (true) {
+            ByteBuffer buffer = conn.getReadBuffer();
+            try {
+                numRead = channel.read(buffer);
+            } catch (IOException e) {
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("read %d from %s", numRead, conn);
+            if (numRead <= 0) break;
+            bytesRead += numRead;
+            boolean full = ! buffer.hasRemaining();
+            conn.onReadData();
+            if (! full) break;
+        }
+        if (numRead == -1) {
+            kill(conn);
+            conn.onClosed();
+        }
+    }
+
+    private void onWrite(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        // anything queued for this connection is going out now
+        synchronized (delayedWrites) {
+            delayedWrites.remove(conn);
+        }
+
+        long numWrote;
+        while (true) {
+            try {
+                numWrote = conn.onWriteData(channel);
+            } catch (IOException e) {
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("wrote %d to %s", numWrote, conn);
+            bytesWritten += numWrote;
+            if ((numWrote == 0) || (! conn.onHasWriteData())) break;
+        }
+        if (! conn.onHasWriteData()) {
+            key.interestOps(SelectionKey.OP_READ);
+            // wantWrite skips setting OP_WRITE when it's already set, so make sure nothing slipped in
+            if (conn.onHasWriteData()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            synchronized (closing) {
+                if (closing.contains(conn)) {
+                    kill(conn);
+                    conn.onClosed();
+                    return;
+                }
+            }
+            conn.onWriteCompleted();
+        }
+    }
+
+}
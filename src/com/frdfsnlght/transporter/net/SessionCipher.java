@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM encryption for one direction of a connection.
+ * <p>
+ * The AES key is derived from a server key and the random nonces both
+ * ends exchange during the handshake, so every connection gets fresh
+ * keys. Each frame carries its own 12 byte IV ahead of the cipher text,
+ * made from a random per-session salt and a frame counter.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class SessionCipher {
+
+    public static final int NONCE_SIZE = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 16;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static Boolean available = null;
+
+    public static synchronized boolean isAvailable() {
+        if (available == null) {
+            try {
+                javax.crypto.Cipher.getInstance(TRANSFORMATION);
+                Mac.getInstance("HmacSHA256");
+                new GCMParameterSpec(TAG_BITS, new byte[IV_SIZE]);
+                available = true;
+            } catch (Throwable t) {
+                available = false;
+            }
+        }
+        return available;
+    }
+
+    public static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // The sender passes its own nonce first, the receiver passes the sender's nonce first.
+    public static SessionCipher create(String key, byte[] senderNonce, byte[] receiverNonce) throws GeneralSecurityException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes("UTF-8"), "HmacSHA256"));
+            mac.update("transporter-aes-gcm".getBytes("UTF-8"));
+            mac.update(senderNonce);
+            mac.update(receiverNonce);
+            return new SessionCipher(Arrays.copyOf(mac.doFinal(), KEY_SIZE));
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e.getMessage());
+        }
+    }
+
+    private final SecretKeySpec key;
+    private final javax.crypto.Cipher cipher;
+    private final byte[] salt = new byte[IV_SIZE - 8];
+    private final byte[] iv = new byte[IV_SIZE];
+    private long counter = 0;
+
+    private SessionCipher(byte[] key) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(key, "AES");
+        cipher = javax.crypto.Cipher.getInstance(TRANSFORMATION);
+        random.nextBytes(salt);
+    }
+
+    // Returns the IV followed by the cipher text and tag.
+    public synchronized byte[] encrypt(byte[] data) throws GeneralSecurityException {
+        System.arraycopy(salt, 0, iv, 0, salt.length);
+        long c = counter++;
+        for (int i = IV_SIZE - 1; i >= salt.length; i--) {
+            iv[i] = (byte)c;
+            c >>>= 8;
+        }
+        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] out = new byte[IV_SIZE + cipher.getOutputSize(data.length)];
+        System.arraycopy(iv, 0, out, 0, IV_SIZE);
+        cipher.doFinal(data, 0, data.length, out, IV_SIZE);
+        return out;
+    }
+
+    // Consumes the buffer's remaining bytes, which must be a frame from encrypt.
+    public synchronized byte[] decrypt(ByteBuffer frame) throws GeneralSecurityException {
+        if (frame.remaining() < (IV_SIZE + (TAG_BITS / 8)))
+            throw new GeneralSecurityException("frame is too short");
+        frame.get(iv);
+        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        ByteBuffer out = ByteBuffer.allocate(cipher.getOutputSize(frame.remaining()));
+        cipher.doFinal(frame, out);
+        if (out.hasRemaining())
+            return Arrays.copyOf(out.array(), out.position());
+        return out.array();
+    }
+
+}
@@ -94,15 +94,6 @@ public final class TestGate extends LocalGateImpl {
     @Override
     protected void calculateCenter() {}
 
-    /*
-    public OldGateMap getOldGateMap() {
-        OldGateMap map = new OldGateMap();
-        for (Location l : getBlocks())
-            map.put(this, l);
-        return map;
-    }
-    */
-
     public Volume getVolume() {
         Volume vol = new Volume(this);
         for (Location l : getBlocks())
@@ -110,7 +101,7 @@ public final class TestGate extends LocalGateImpl {
         return vol;
     }
 
-    private Set<Location> getBlocks() {
+    public Set<Location> getBlocks() {
         if (blocks == null) {
             int cx = random.nextInt((MAX_RANGE - MAX_SIZE) * 2) - MAX_RANGE;
             int cy = random.nextInt(256 - (MAX_SIZE / 2));
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.File;
+import java.io.IOException;
+import org.bukkit.GameMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public class GateStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File gateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        File gatesFolder = tmp.newFolder("gates");
+        gateFile = new File(gatesFolder, "world.test.yml");
+        GateStore.configure(true);
+    }
+
+    @After
+    public void tearDown() {
+        GateStore.configure(false);
+    }
+
+    @Test
+    public void gameModeSurvivesRoundTrip() throws Exception {
+        TypeMap conf = new TypeMap();
+        conf.set("name", "test");
+        conf.set("type", "BLOCK");
+        conf.set("gameMode", GameMode.CREATIVE.toString());
+        GateStore.write(gateFile, conf);
+
+        // reopen the store so the gate comes back from disk
+        GateStore.closeAll();
+        TypeMap loaded = GateStore.read(gateFile);
+        assertEquals("test", loaded.getString("name"));
+        assertEquals(GameMode.CREATIVE, GameMode.valueOf(loaded.getString("gameMode")));
+    }
+
+    @Test
+    public void enumsAreStoredByName() throws Exception {
+        TypeMap conf = new TypeMap();
+        conf.set("name", "test");
+        conf.put("gameMode", GameMode.ADVENTURE);
+        GateStore.write(gateFile, conf);
+
+        GateStore.closeAll();
+        assertEquals("ADVENTURE", GateStore.read(gateFile).getString("gameMode"));
+    }
+
+}